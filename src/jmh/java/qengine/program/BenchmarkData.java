@@ -0,0 +1,145 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chargement commun aux benchmarks : les données et les requêtes sont lues une
+ * seule fois, en dehors des mesures.
+ */
+final class BenchmarkData {
+    static final String GENERATED = "generated:";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Résout le paramètre {@code dataFile} d'un benchmark : soit un chemin, soit
+     * {@code generated:<n>} pour un jeu de données synthétique de {@code n}
+     * sujets construit à partir du vocabulaire du fichier de requêtes.
+     */
+    static String dataset(String dataFile, String queryFile) throws IOException {
+        if (!dataFile.startsWith(GENERATED)) {
+            return dataFile;
+        }
+        return generate(queryFile, Integer.parseInt(dataFile.substring(GENERATED.length())), 42).toString();
+    }
+
+    /**
+     * Écrit un fichier N-Triples dont chaque sujet reçoit au hasard une partie
+     * des couples (prédicat, objet) des requêtes, plus quelques littéraux, pour
+     * que les requêtes en étoile aient des résultats.
+     */
+    static Path generate(String queryFile, int subjects, long seed) throws IOException {
+        List<String[]> patterns = patterns(queryFile);
+        Random random = new Random(seed);
+        Path file = Files.createTempFile("qengine-generated-" + subjects + "-", ".nt");
+        file.toFile().deleteOnExit();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int subject = 0; subject < subjects; subject++) {
+                String subjectIRI = "<http://db.uwaterloo.ca/~galuc/wsdbm/Generated" + subject + ">";
+                int patternCount = 1 + random.nextInt(8);
+                for (int i = 0; i < patternCount; i++) {
+                    String[] pattern = patterns.get(random.nextInt(patterns.size()));
+                    writer.write(subjectIRI + " <" + pattern[0] + "> <" + pattern[1] + "> .\n");
+                }
+                writer.write(subjectIRI + " <http://db.uwaterloo.ca/~galuc/wsdbm/userId> \"" + random.nextInt(10_000_000) + "\" .\n");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Tous les termes des données, dans l'ordre de lecture (sujet, prédicat,
+     * objet de chaque triple).
+     */
+    static List<String> terms(String dataFile) throws IOException {
+        List<String> terms = new ArrayList<>();
+        load(dataFile, new AbstractRDFHandler() {
+            @Override
+            public void handleStatement(Statement st) {
+                terms.add(st.getSubject().stringValue());
+                terms.add(st.getPredicate().stringValue());
+                terms.add(st.getObject().stringValue());
+            }
+        });
+        return terms;
+    }
+
+    static MainRDFHandler load(String dataFile) throws IOException {
+        MainRDFHandler handler = new MainRDFHandler();
+        load(dataFile, handler);
+        return handler;
+    }
+
+    static void load(String dataFile, AbstractRDFHandler handler) throws IOException {
+        try (Reader dataReader = new FileReader(dataFile)) {
+            RDFParser rdfParser = Rio.createParser(RDFFormat.NTRIPLES);
+            rdfParser.setRDFHandler(handler);
+            rdfParser.parse(dataReader, null);
+        }
+    }
+
+    /**
+     * Renvoie les couples (prédicat, objet) de tous les patterns du fichier de
+     * requêtes, sous forme de chaînes.
+     */
+    static List<String[]> patterns(String queryFile) throws IOException {
+        SPARQLParser sparqlParser = new SPARQLParser();
+        List<String[]> patterns = new ArrayList<>();
+
+        for (String query : Engine.getListFromFile(queryFile)) {
+            for (StatementPattern pattern : StatementPatternCollector.process(sparqlParser.parseQuery(query, null).getTupleExpr())) {
+                patterns.add(new String[]{
+                        pattern.getPredicateVar().getValue().stringValue(),
+                        pattern.getObjectVar().getValue().stringValue()
+                });
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Handler qui alimente un {@link MainRDFHandler} et transmet aussi chaque
+     * triple encodé à {@link #accept(int, int, int)}.
+     */
+    abstract static class TeeHandler extends AbstractRDFHandler {
+        private final MainRDFHandler handler;
+
+        TeeHandler(MainRDFHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleStatement(Statement st) {
+            handler.handleStatement(st);
+            accept(handler.getDictionary().getKeyIfExists(st.getSubject().stringValue()),
+                    handler.getDictionary().getKeyIfExists(st.getPredicate().stringValue()),
+                    handler.getDictionary().getKeyIfExists(st.getObject().stringValue()));
+        }
+
+        @Override
+        public void endRDF() {
+            handler.endRDF();
+        }
+
+        abstract void accept(int subject, int predicate, int object);
+    }
+}
@@ -0,0 +1,108 @@
+package qengine.program;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodage et décodage des termes, avec le {@link Dictionary} générique sur le
+ * tas et le {@link TermDictionary} hors tas. Chaque opération porte sur un
+ * terme.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DictionaryBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private String[] terms;
+    private Dictionary<String> heapDictionary;
+    private TermDictionary termDictionary;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> allTerms = BenchmarkData.terms(BenchmarkData.dataset(dataFile, queryFile));
+        terms = allTerms.toArray(new String[0]);
+
+        heapDictionary = new Dictionary<>();
+        termDictionary = new TermDictionary();
+        for (String term : terms) {
+            heapDictionary.getKeyIfExists(term);
+            termDictionary.getKeyIfExists(term);
+        }
+    }
+
+    private int nextTerm() {
+        int current = next;
+        next = (next + 1) % terms.length;
+        return current;
+    }
+
+    @Benchmark
+    public int encodeHeap() {
+        return heapDictionary.lookup(terms[nextTerm()]);
+    }
+
+    @Benchmark
+    public int encodeOffHeap() {
+        return termDictionary.lookup(terms[nextTerm()]);
+    }
+
+    @Benchmark
+    public String decodeHeap() {
+        return heapDictionary.getValue(1 + nextTerm() % heapDictionary.size());
+    }
+
+    @Benchmark
+    public String decodeOffHeap() {
+        return termDictionary.getValue(1 + nextTerm() % termDictionary.size());
+    }
+
+    /**
+     * Construction complète d'un dictionnaire à partir de tous les termes des
+     * données.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public void buildOffHeap(Blackhole blackhole) {
+        TermDictionary dictionary = new TermDictionary();
+        for (String term : terms) {
+            blackhole.consume(dictionary.getKeyIfExists(term));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public void buildHeap(Blackhole blackhole) {
+        Dictionary<String> dictionary = new Dictionary<>();
+        for (String term : terms) {
+            blackhole.consume(dictionary.getKeyIfExists(term));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lecture et encodage d'un fichier N-Triples complet, sans construire les
+ * index : Rio (chemin historique) contre {@link NTriplesParser} sur le fichier
+ * projeté en mémoire.
+ *
+ * <p>
+ * Le compteur {@code bytes} donne le débit en octets lus par seconde ; le
+ * diviser par 2^20 pour l'avoir en Mo/s.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private Path path;
+    private long size;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        path = Paths.get(BenchmarkData.dataset(dataFile, queryFile));
+        size = Files.size(path);
+    }
+
+    @Benchmark
+    public TripleBuffer rio(Throughput throughput) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        TripleBuffer triples = new TripleBuffer();
+        BenchmarkData.load(path.toString(), new AbstractRDFHandler() {
+            @Override
+            public void handleStatement(Statement st) {
+                triples.add(dictionary.getKeyIfExists(st.getSubject().stringValue()),
+                        dictionary.getKeyIfExists(st.getPredicate().stringValue()),
+                        dictionary.getKeyIfExists(st.getObject().stringValue()));
+            }
+        });
+        throughput.bytes += size;
+        return triples;
+    }
+
+    @Benchmark
+    public TripleBuffer fastParser(Throughput throughput) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        TripleBuffer triples = new TripleBuffer();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            new NTriplesParser(dictionary).parse(mapped, triples, new ByteArrayOutputStream());
+        }
+        throughput.bytes += size;
+        return triples;
+    }
+}
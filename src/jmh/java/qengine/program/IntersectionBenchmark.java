@@ -0,0 +1,70 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Intersection#intersect(List)} sur les listes des requêtes du
+ * workload qui ont au moins deux patterns. Chaque opération est une requête.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntersectionBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private List<List<PostingList>> queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        MainRDFHandler handler = BenchmarkData.load(BenchmarkData.dataset(dataFile, queryFile));
+        SPARQLParser sparqlParser = new SPARQLParser();
+        queries = new ArrayList<>();
+
+        for (String query : Engine.getListFromFile(queryFile)) {
+            List<StatementPattern> patterns = StatementPatternCollector.process(sparqlParser.parseQuery(query, null).getTupleExpr());
+            if (patterns.size() < 2) {
+                continue;
+            }
+
+            List<PostingList> lists = new ArrayList<>();
+            for (QueryPlan.Step step : QueryPlan.of(patterns, handler).getSteps()) {
+                lists.add(handler.getPosStore().twoValuesFilter(step.predicate(), step.object()));
+            }
+            queries.add(lists);
+        }
+    }
+
+    @Benchmark
+    public int[] findCommonElements() {
+        List<PostingList> lists = queries.get(next);
+        next = (next + 1) % queries.size();
+        return Intersection.intersect(lists);
+    }
+}
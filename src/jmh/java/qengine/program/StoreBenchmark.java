@@ -0,0 +1,67 @@
+package qengine.program;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction d'un index : insertion triple par triple avec
+ * {@link Store#update(int, int, int)} puis compactage, ou construction directe
+ * depuis le tampon partagé comme le fait {@link MainRDFHandler#endRDF()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private TripleBuffer triples;
+
+    @Setup
+    public void setup() throws IOException {
+        triples = new TripleBuffer();
+        BenchmarkData.load(BenchmarkData.dataset(dataFile, queryFile), new BenchmarkData.TeeHandler(new MainRDFHandler()) {
+            @Override
+            void accept(int subject, int predicate, int object) {
+                triples.add(subject, predicate, object);
+            }
+        });
+    }
+
+    @Benchmark
+    public Store updateAndBuild() {
+        Store store = new Store();
+        int[] data = triples.array();
+        for (int i = 0; i < 3 * triples.size(); i += 3) {
+            store.update(data[i + 1], data[i + 2], data[i]);
+        }
+        store.build();
+        return store;
+    }
+
+    @Benchmark
+    public Store buildFromBuffer() {
+        Store store = new Store();
+        store.build(triples, Permutation.POS);
+        return store;
+    }
+}
@@ -0,0 +1,92 @@
+package qengine.program;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Latence par pattern de {@link Store#twoValuesFilter(int, int)} sur les
+ * patterns du workload, comparée au parcours complet de l'ancien
+ * {@code Store} (HashMap imbriquées filtrées par {@code equals}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwoValuesFilterBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private Store posStore;
+    private HashMap<Integer, HashMap<Integer, List<Integer>>> legacyPosStore;
+    private int[] predicates;
+    private int[] objects;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        MainRDFHandler handler = new MainRDFHandler();
+        legacyPosStore = new HashMap<>();
+        BenchmarkData.load(BenchmarkData.dataset(dataFile, queryFile), new BenchmarkData.TeeHandler(handler) {
+            @Override
+            void accept(int subject, int predicate, int object) {
+                legacyPosStore.computeIfAbsent(predicate, key -> new HashMap<>()).computeIfAbsent(object, key -> new ArrayList<>()).add(subject);
+            }
+        });
+        posStore = handler.getPosStore();
+
+        List<String[]> patterns = BenchmarkData.patterns(queryFile);
+        predicates = new int[patterns.size()];
+        objects = new int[patterns.size()];
+        for (int i = 0; i < patterns.size(); i++) {
+            predicates[i] = handler.getDictionary().lookup(patterns.get(i)[0]);
+            objects[i] = handler.getDictionary().lookup(patterns.get(i)[1]);
+        }
+    }
+
+    private int nextPattern() {
+        int current = next;
+        next = (next + 1) % predicates.length;
+        return current;
+    }
+
+    @Benchmark
+    public int lookup() {
+        int i = nextPattern();
+        return posStore.twoValuesFilter(predicates[i], objects[i]).size();
+    }
+
+    @Benchmark
+    public int legacyScan() {
+        int i = nextPattern();
+        Integer first = predicates[i];
+        Integer second = objects[i];
+        return legacyPosStore.entrySet().stream()
+                .filter(entry -> entry.getKey().equals(first))
+                .flatMap(entry -> entry.getValue().entrySet().stream())
+                .filter(innerEntry -> innerEntry.getKey().equals(second))
+                .flatMap(innerEntry -> innerEntry.getValue().stream())
+                .collect(Collectors.toList())
+                .size();
+    }
+}
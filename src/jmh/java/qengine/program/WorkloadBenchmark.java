@@ -0,0 +1,71 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Évaluation de bout en bout avec {@link Engine#processAQuery(ParsedQuery)},
+ * décodage des résultats compris : une requête par opération, ou tout le
+ * workload (séquentiellement) par opération.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WorkloadBenchmark {
+
+    @Param({"data/sample_data.nt", "generated:200000"})
+    public String dataFile;
+
+    @Param({"data/STAR_ALL_workload.queryset"})
+    public String queryFile;
+
+    private Engine engine;
+    private List<ParsedQuery> queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        engine = new Engine(null, "./data/", queryFile, BenchmarkData.dataset(dataFile, queryFile), false, false, 0);
+        engine.parseData();
+
+        SPARQLParser sparqlParser = new SPARQLParser();
+        queries = Engine.getListFromFile(queryFile).stream()
+                .map(query -> sparqlParser.parseQuery(query, null))
+                .toList();
+    }
+
+    @Benchmark
+    public List<String> processAQuery() {
+        ParsedQuery query = queries.get(next);
+        next = (next + 1) % queries.size();
+        // Les résultats sont décodés à la lecture : on les recopie pour les décoder
+        return List.copyOf(engine.processAQuery(query));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void workload(Blackhole blackhole) {
+        for (ParsedQuery query : queries) {
+            blackhole.consume(List.copyOf(engine.processAQuery(query)));
+        }
+    }
+}
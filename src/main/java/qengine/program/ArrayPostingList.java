@@ -0,0 +1,74 @@
+package qengine.program;
+
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * {@link PostingList} sur une tranche triée d'un tableau d'identifiants, par
+ * exemple celui des valeurs d'un {@link Store}.
+ */
+final class ArrayPostingList extends PostingList implements RandomAccess {
+    private final int[] values;
+    private final int from;
+    private final int to;
+
+    ArrayPostingList(int[] values, int from, int to) {
+        this.values = values;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public int getInt(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return values[from + index];
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public int[] toIntArray() {
+        return Arrays.copyOfRange(values, from, to);
+    }
+
+    @Override
+    Cursor cursor() {
+        return new Cursor() {
+            private int position = from;
+
+            @Override
+            int current() {
+                return position < to ? values[position] : END;
+            }
+
+            @Override
+            int advance() {
+                position = Math.min(position + 1, to);
+                return current();
+            }
+
+            @Override
+            int seek(int target) {
+                position = Intersection.gallop(values, position, to, target);
+                return current();
+            }
+        };
+    }
+
+    int[] array() {
+        return values;
+    }
+
+    int from() {
+        return from;
+    }
+
+    int to() {
+        return to;
+    }
+}
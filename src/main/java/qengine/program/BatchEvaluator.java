@@ -0,0 +1,204 @@
+package qengine.program;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Évaluation groupée des requêtes en étoile d'un workload, qui partage le
+ * travail commun à plusieurs requêtes.
+ *
+ * <p>
+ * Les patterns de chaque plan sont rangés dans un ordre canonique (cardinalité
+ * estimée croissante, puis identifiants), et les plans sont rangés dans un
+ * arbre de préfixes : deux requêtes qui commencent par les mêmes patterns
+ * partagent le nœud de ce préfixe. L'arbre est parcouru en profondeur, chaque
+ * nœud intersectant le résultat de son parent avec la liste de son pattern :
+ * l'intersection d'un préfixe commun n'est donc faite qu'une fois, et un
+ * préfixe vide coupe tout son sous-arbre. Chaque liste de pattern distincte
+ * n'est lue qu'une fois dans l'index.
+ * </p>
+ *
+ * <p>
+ * Les résultats sont ceux de
+ * {@link Engine#evaluate(QueryPlan, MainRDFHandler, int[], int[], QueryMetrics)}
+ * pour chaque plan, y compris avec un {@code LIMIT} (les premières solutions,
+ * dans l'ordre) et avec un index partitionné ({@link Shards}), où l'arbre est
+ * évalué sur chaque partition et les résultats concaténés dans l'ordre des
+ * partitions.
+ * </p>
+ */
+public final class BatchEvaluator {
+
+    private BatchEvaluator() {
+    }
+
+    /**
+     * Résultats d'un lot, dans l'ordre des plans, et compteurs du partage.
+     *
+     * @param keys                 solutions de chaque plan
+     * @param distinctPatterns      nombre de listes de patterns lues (sommé sur
+     *                              les partitions)
+     * @param patternReferences     lectures de listes d'une évaluation requête
+     *                              par requête (sommé sur les partitions)
+     * @param intersections         intersections faites (sommé sur les
+     *                              partitions)
+     * @param perQueryIntersections intersections d'une évaluation requête par
+     *                              requête, sans arrêt anticipé (sommé sur les
+     *                              partitions)
+     */
+    public record Batch(int[][] keys, int distinctPatterns, int patternReferences, int intersections,
+                        int perQueryIntersections) {
+    }
+
+    // Résultats et compteurs d'une partition
+    private record Partial(int[][] keys, int lists, int intersections) {
+    }
+
+    // Nœud de l'arbre : un préfixe de patterns
+    private static final class Node {
+        final long pattern;
+        final Map<Long, Node> children = new LinkedHashMap<>();
+        // Plans dont la suite de patterns se termine ici
+        final List<Integer> plans = new ArrayList<>();
+
+        Node(long pattern) {
+            this.pattern = pattern;
+        }
+    }
+
+    /**
+     * Évalue ensemble des plans de requêtes en étoile ({@link QueryPlan#getJoin()}
+     * nul) sur la version {@code rdfHandler} des données.
+     */
+    public static Batch evaluate(List<QueryPlan> plans, MainRDFHandler rdfHandler) {
+        Node root = new Node(0);
+        int[][] keys = new int[plans.size()][];
+        int patternReferences = 0;
+        int perQueryIntersections = 0;
+
+        for (int i = 0; i < plans.size(); i++) {
+            QueryPlan plan = plans.get(i);
+            if (plan.getSteps().isEmpty() || plan.isUnsatisfiable()) {
+                keys[i] = Intersection.EMPTY;
+                continue;
+            }
+            patternReferences += plan.getSteps().size();
+            perQueryIntersections += plan.getSteps().size() - 1;
+
+            Node node = root;
+            for (long pattern : canonicalOrder(plan.getSteps())) {
+                node = node.children.computeIfAbsent(pattern, Node::new);
+            }
+            node.plans.add(i);
+        }
+
+        int[] limits = plans.stream().mapToInt(QueryPlan::getRequiredResults).toArray();
+        Shards shards = rdfHandler.getShards();
+        if (shards == null) {
+            Map<Long, PostingList> lists = fetch(root, rdfHandler::getPostingList);
+            AtomicInteger intersections = new AtomicInteger();
+            // Les sous-arbres des premiers patterns sont indépendants
+            root.children.values().parallelStream()
+                    .forEach(child -> evaluate(child, null, lists, limits, keys, intersections));
+            return new Batch(keys, lists.size(), patternReferences, intersections.get(), perQueryIntersections);
+        }
+
+        List<Partial> partials = shards.map(shard -> {
+            int[][] shardKeys = new int[plans.size()][];
+            Map<Long, PostingList> lists = fetch(root, (predicate, object) ->
+                    rdfHandler.getShardPostingList(shard, predicate, object));
+            AtomicInteger intersections = new AtomicInteger();
+            for (Node child : root.children.values()) {
+                evaluate(child, null, lists, limits, shardKeys, intersections);
+            }
+            return new Partial(shardKeys, lists.size(), intersections.get());
+        });
+
+        // Concaténation dans l'ordre des partitions, comme pour une requête seule
+        for (int i = 0; i < plans.size(); i++) {
+            if (keys[i] != null) {
+                continue;
+            }
+            int total = 0;
+            for (Partial partial : partials) {
+                total += partial.keys()[i].length;
+            }
+            int[] merged = new int[Math.min(total, limits[i])];
+            int position = 0;
+            for (Partial partial : partials) {
+                int length = Math.min(partial.keys()[i].length, merged.length - position);
+                System.arraycopy(partial.keys()[i], 0, merged, position, length);
+                position += length;
+            }
+            keys[i] = merged;
+        }
+        return new Batch(keys, partials.stream().mapToInt(Partial::lists).sum(), patternReferences * shards.size(),
+                partials.stream().mapToInt(Partial::intersections).sum(), perQueryIntersections * shards.size());
+    }
+
+    // Patterns distincts du plan, triés par cardinalité estimée puis par identifiants
+    private static long[] canonicalOrder(List<QueryPlan.Step> steps) {
+        return steps.stream()
+                .sorted(Comparator.comparingInt(QueryPlan.Step::estimate)
+                        .thenComparingInt(QueryPlan.Step::predicate)
+                        .thenComparingInt(QueryPlan.Step::object))
+                .mapToLong(step -> ((long) step.predicate() << 32) | (step.object() & 0xFFFFFFFFL))
+                .distinct()
+                .toArray();
+    }
+
+    // Lit une fois la liste de chaque pattern de l'arbre
+    private static Map<Long, PostingList> fetch(Node root, Engine.PatternLists patternLists) {
+        Map<Long, PostingList> lists = new HashMap<>();
+        List<Node> pending = new ArrayList<>(root.children.values());
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            lists.computeIfAbsent(node.pattern, pattern -> patternLists.get((int) (pattern >>> 32), pattern.intValue()));
+            pending.addAll(node.children.values());
+        }
+        return lists;
+    }
+
+    private static void evaluate(Node node, PostingList parent, Map<Long, PostingList> lists, int[] limits,
+                                 int[][] keys, AtomicInteger intersections) {
+        PostingList list = lists.get(node.pattern);
+        PostingList running;
+        if (parent == null) {
+            running = list;
+        } else {
+            running = PostingList.of(Intersection.intersect(List.of(parent, list)));
+            intersections.incrementAndGet();
+        }
+
+        if (!node.plans.isEmpty()) {
+            // Les requêtes identiques partagent le même tableau
+            int[] solutions = running.toIntArray();
+            for (int plan : node.plans) {
+                keys[plan] = limits[plan] < solutions.length ? Arrays.copyOf(solutions, limits[plan]) : solutions;
+            }
+        }
+        if (running.isEmpty()) {
+            markEmpty(node, keys);
+            return;
+        }
+        for (Node child : node.children.values()) {
+            evaluate(child, running, lists, limits, keys, intersections);
+        }
+    }
+
+    // Un préfixe vide rend vides tous les plans qui le prolongent
+    private static void markEmpty(Node node, int[][] keys) {
+        for (Node child : node.children.values()) {
+            for (int plan : child.plans) {
+                keys[plan] = Intersection.EMPTY;
+            }
+            markEmpty(child, keys);
+        }
+    }
+}
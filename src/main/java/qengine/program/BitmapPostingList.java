@@ -0,0 +1,162 @@
+package qengine.program;
+
+/**
+ * {@link PostingList} sur une liste dense rangée en bitmap dans un
+ * {@link CompressedLists}.
+ *
+ * <p>
+ * Un bitmap occupe des {@code long} consécutifs : un en-tête (la base, multiple
+ * de 64, sur les 32 bits de poids fort, et le nombre de mots sur les 32 bits de
+ * poids faible), puis les mots, le bit {@code i} représentant l'identifiant
+ * {@code base + i}. Les bases étant alignées sur 64, les mots de deux bitmaps
+ * se correspondent un à un, ce qui permet à {@link Intersection} de les
+ * combiner par un simple ET.
+ * </p>
+ */
+final class BitmapPostingList extends PostingList {
+    private final long[] words;
+    private final int firstWord;
+    private final int wordCount;
+    private final int base;
+    private final int length;
+
+    BitmapPostingList(long[] bitmaps, int header, int length) {
+        this.words = bitmaps;
+        this.firstWord = header + 1;
+        this.wordCount = (int) bitmaps[header];
+        this.base = (int) (bitmaps[header] >>> 32);
+        this.length = length;
+    }
+
+    /**
+     * Nombre de {@code long} (en-tête compris) du bitmap des identifiants
+     * compris entre {@code first} et {@code last}.
+     */
+    static long sizeOf(int first, int last) {
+        int base = first & ~63;
+        return 1 + ((last - base) >>> 6) + 1;
+    }
+
+    /**
+     * Écrit le bitmap de {@code values[from, to)} à partir de
+     * {@code bitmaps[position]} et renvoie la position qui suit.
+     */
+    static int write(int[] values, int from, int to, long[] bitmaps, int position) {
+        int base = values[from] & ~63;
+        int wordCount = (int) sizeOf(values[from], values[to - 1]) - 1;
+        bitmaps[position] = ((long) base << 32) | wordCount;
+        for (int i = from; i < to; i++) {
+            int offset = values[i] - base;
+            bitmaps[position + 1 + (offset >>> 6)] |= 1L << offset;
+        }
+        return position + 1 + wordCount;
+    }
+
+    @Override
+    public int getInt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+
+        int remaining = index;
+        for (int word = 0; ; word++) {
+            long bits = words[firstWord + word];
+            int count = Long.bitCount(bits);
+            if (remaining < count) {
+                for (int i = 0; i < remaining; i++) {
+                    bits &= bits - 1;
+                }
+                return base + (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public int[] toIntArray() {
+        int[] values = new int[length];
+        int count = 0;
+        for (int word = 0; word < wordCount; word++) {
+            for (long bits = words[firstWord + word]; bits != 0; bits &= bits - 1) {
+                values[count++] = base + (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    boolean containsInt(int value) {
+        long offset = (long) value - base;
+        if (offset < 0 || offset >= (long) wordCount << 6) {
+            return false;
+        }
+        return (words[firstWord + (int) (offset >>> 6)] & (1L << offset)) != 0;
+    }
+
+    @Override
+    Cursor cursor() {
+        return new Cursor() {
+            // Décalage par rapport à la base de l'identifiant courant, -1 une fois épuisé
+            private int offset = nextSetBit(0);
+
+            @Override
+            int current() {
+                return offset < 0 ? END : base + offset;
+            }
+
+            @Override
+            int advance() {
+                if (offset >= 0) {
+                    offset = nextSetBit(offset + 1);
+                }
+                return current();
+            }
+
+            @Override
+            int seek(int target) {
+                if (offset >= 0 && target > base + offset) {
+                    offset = nextSetBit(target - base);
+                }
+                return current();
+            }
+        };
+    }
+
+    // Premier bit à 1 à partir du décalage from, ou -1
+    private int nextSetBit(int from) {
+        int word = from >>> 6;
+        if (word >= wordCount) {
+            return -1;
+        }
+
+        long bits = words[firstWord + word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == wordCount) {
+                return -1;
+            }
+            bits = words[firstWord + word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    int firstWord() {
+        return firstWord;
+    }
+
+    int wordCount() {
+        return wordCount;
+    }
+
+    int base() {
+        return base;
+    }
+}
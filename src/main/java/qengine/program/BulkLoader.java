@@ -0,0 +1,191 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chargement parallèle d'un fichier N-Triples.
+ *
+ * <p>
+ * Le fichier est découpé en morceaux alignés sur les fins de ligne, que
+ * plusieurs threads parsent en même temps. Chaque thread encode les termes dans
+ * le {@link TermDictionary} partagé et envoie les triples encodés au
+ * {@link MainRDFHandler} par lots. Les six index sont ensuite construits en
+ * parallèle par {@link MainRDFHandler#endRDF()}.
+ * </p>
+ *
+ * <p>
+ * Par défaut, chaque morceau est projeté en mémoire et lu par un
+ * {@link NTriplesParser} ; seules les lignes que celui-ci ne reconnaît pas
+ * passent par Rio. {@link #setFastParser(boolean)} permet de tout faire lire
+ * par Rio.
+ * </p>
+ */
+public class BulkLoader {
+    private static final int CHUNK_SIZE = 8 << 20;
+    private static final int BATCH_SIZE = 16 * 1024;
+
+    private final MainRDFHandler rdfHandler;
+    private final int threads;
+    private boolean fastParser = true;
+    private final AtomicLong rioLines = new AtomicLong();
+
+    public BulkLoader(MainRDFHandler rdfHandler, int threads) {
+        this.rdfHandler = rdfHandler;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setFastParser(boolean fastParser) {
+        this.fastParser = fastParser;
+    }
+
+    public void load(Path dataFile, String baseURI) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long begin = System.currentTimeMillis();
+        long size;
+
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            List<Future<?>> chunks = new ArrayList<>();
+            long start = 0;
+            size = channel.size();
+
+            while (start < size) {
+                long end = nextLineStart(channel, Math.min(size, start + CHUNK_SIZE));
+                long chunkStart = start;
+                chunks.add(pool.submit(() -> {
+                    parseChunk(channel, chunkStart, end, baseURI);
+                    return null;
+                }));
+                start = end;
+            }
+
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + dataFile, exception);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Could not load " + dataFile, exception.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+        System.out.println("Parsed " + (size >> 20) + "MB in " + elapsed + "ms ("
+                + (size * 1000 / elapsed >> 20) + "MB/s"
+                + (fastParser ? ", " + rioLines.get() + " lines through Rio)" : ", Rio only)"));
+
+        rdfHandler.endRDF();
+    }
+
+    private void parseChunk(FileChannel channel, long start, long end, String baseURI) throws IOException {
+        if (!fastParser) {
+            parseWithRio(channel, start, end, baseURI);
+            return;
+        }
+
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        TripleBuffer triples = new TripleBuffer(BATCH_SIZE);
+        ByteArrayOutputStream unsupported = new ByteArrayOutputStream();
+        int unsupportedLines = new NTriplesParser(rdfHandler.getDictionary()).parse(mapped, triples, unsupported);
+        rdfHandler.addTriples(triples);
+
+        if (unsupportedLines > 0) {
+            rioLines.addAndGet(unsupportedLines);
+            parseWithRio(new ByteArrayInputStream(unsupported.toByteArray()), baseURI);
+        }
+    }
+
+    private void parseWithRio(FileChannel channel, long start, long end, String baseURI) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+
+        parseWithRio(new ByteArrayInputStream(bytes), baseURI);
+    }
+
+    private void parseWithRio(InputStream input, String baseURI) throws IOException {
+        RDFParser rdfParser = Rio.createParser(RDFFormat.NTRIPLES);
+        // Les nœuds anonymes doivent garder le même identifiant d'un morceau à l'autre
+        rdfParser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        rdfParser.setRDFHandler(new ChunkHandler());
+        rdfParser.parse(input, baseURI);
+    }
+
+    /**
+     * Position du début de la ligne suivant {@code position} (ou la fin du
+     * fichier).
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long size = channel.size();
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Encode les triples d'un morceau et les transmet par lots.
+     */
+    private final class ChunkHandler extends AbstractRDFHandler {
+        private final TripleBuffer batch = new TripleBuffer(BATCH_SIZE);
+
+        @Override
+        public void handleStatement(@NotNull Statement st) {
+            TermDictionary dictionary = rdfHandler.getDictionary();
+            batch.add(dictionary.getKeyIfExists(st.getSubject().stringValue()),
+                    dictionary.getKeyIfExists(st.getPredicate().stringValue()),
+                    dictionary.getKeyIfExists(st.getObject().stringValue()));
+
+            if (batch.size() >= BATCH_SIZE) {
+                rdfHandler.addTriples(batch);
+                batch.clear();
+            }
+        }
+
+        @Override
+        public void endRDF() {
+            rdfHandler.addTriples(batch);
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package qengine.program;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compteurs de succès, d'échecs et d'évictions d'un cache, partagés par les
+ * threads qui l'interrogent.
+ */
+public final class CacheStatistics {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Remet les compteurs à zéro, par exemple à la fin de l'échauffement ; le
+     * contenu du cache n'est pas touché.
+     */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"hits\": %d, \"misses\": %d, \"evictions\": %d, \"hitRate\": %.4f}",
+                getHits(), getMisses(), getEvictions(), getHitRate());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d hits, %d misses, %d evictions (hit rate %.1f%%)",
+                getHits(), getMisses(), getEvictions(), 100 * getHitRate());
+    }
+}
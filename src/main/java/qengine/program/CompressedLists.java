@@ -0,0 +1,318 @@
+package qengine.program;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dernier niveau compressé d'un {@link Store} : les listes de troisièmes clés,
+ * dans l'ordre des secondes clés de l'index.
+ *
+ * <p>
+ * Les listes d'au moins {@link #BLOCK_SIZE} identifiants sont découpées en blocs
+ * de {@link #BLOCK_SIZE}. Pour chaque bloc on garde son premier identifiant en
+ * clair ({@code blockFirst}, qui sert de pointeur de saut), puis les écarts
+ * suivants (moins un) sur le nombre de bits du plus grand d'entre eux, les uns à
+ * la suite des autres dans {@code data}. Les listes plus courtes restent en
+ * clair dans {@code small} : le format par blocs coûterait plus qu'il ne
+ * rapporte.
+ * </p>
+ *
+ * <p>
+ * Comme dans les bitmaps Roaring, une longue liste dense (au moins un
+ * identifiant sur {@link #DENSITY_THRESHOLD} de l'intervalle qu'elle couvre,
+ * par exemple les sujets d'un pays ou d'une classe très répandue) est plutôt
+ * rangée en bitmap dans {@code bitmaps} : les intersections se font alors mot
+ * par mot, ou par simple test d'appartenance (voir {@link BitmapPostingList}).
+ * Le choix est fait pour chaque liste à la construction.
+ * </p>
+ *
+ * <p>
+ * Rien n'est gardé par liste : seules les listes compressées, peu nombreuses,
+ * ont une entrée dans {@code packedLists}, avec leur premier bloc et le nombre
+ * cumulé de leurs identifiants. La position d'une petite liste dans
+ * {@code small} s'en déduit à partir de sa position dans {@code values}.
+ * </p>
+ */
+final class CompressedLists {
+    static final int BLOCK_SIZE = 128;
+    static final int DENSITY_THRESHOLD = 16;
+
+    // Numéros des listes compressées, leur premier bloc (ou -(début + 1) de leur
+    // bitmap), et le nombre d'identifiants des listes compressées jusqu'à elles incluses
+    private final int[] packedLists;
+    private final int[] packedFirstBlocks;
+    private final int[] packedValuesEnd;
+    private final int[] small;
+    private final int[] blockFirst;
+    // Par bloc : premier mot dans data (un de plus pour la fin) et largeur des écarts
+    private final int[] blockOffsets;
+    private final byte[] blockBits;
+    private final int[] data;
+    // Bitmaps des listes denses, chacune précédée de son en-tête (voir BitmapPostingList)
+    private final long[] bitmaps;
+
+    private CompressedLists(int[] packedLists, int[] packedFirstBlocks, int[] packedValuesEnd, int[] small,
+                            int[] blockFirst, int[] blockOffsets, byte[] blockBits, int[] data, long[] bitmaps) {
+        this.packedLists = packedLists;
+        this.packedFirstBlocks = packedFirstBlocks;
+        this.packedValuesEnd = packedValuesEnd;
+        this.small = small;
+        this.blockFirst = blockFirst;
+        this.blockOffsets = blockOffsets;
+        this.blockBits = blockBits;
+        this.data = data;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * Compresse les listes {@code values[offsets[i], offsets[i + 1])}.
+     */
+    static CompressedLists pack(int[] values, int[] offsets) {
+        int listCount = offsets.length - 1;
+
+        // Premier passage : tailles de small, nombre de listes compressées et de blocs
+        int smallSize = 0;
+        int packedCount = 0;
+        int blockCount = 0;
+        long bitmapSize = 0;
+        for (int list = 0; list < listCount; list++) {
+            int from = offsets[list];
+            int to = offsets[list + 1];
+            if (!isPacked(to - from)) {
+                smallSize += to - from;
+                continue;
+            }
+
+            packedCount++;
+            if (isDense(values, from, to)) {
+                bitmapSize += BitmapPostingList.sizeOf(values[from], values[to - 1]);
+            } else {
+                blockCount += (to - from + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            }
+        }
+
+        int[] packedLists = new int[packedCount];
+        int[] packedFirstBlocks = new int[packedCount];
+        int[] packedValuesEnd = new int[packedCount];
+        int packed = 0;
+        int[] small = new int[smallSize];
+        int[] blockFirst = new int[blockCount];
+        int[] blockOffsets = new int[blockCount + 1];
+        byte[] blockBits = new byte[blockCount];
+        int smallPosition = 0;
+        int block = 0;
+        long words = 0;
+        long[] bitmaps = new long[Math.toIntExact(bitmapSize)];
+        int bitmapPosition = 0;
+
+        for (int list = 0; list < listCount; list++) {
+            int from = offsets[list];
+            int to = offsets[list + 1];
+            if (!isPacked(to - from)) {
+                System.arraycopy(values, from, small, smallPosition, to - from);
+                smallPosition += to - from;
+                continue;
+            }
+
+            packedLists[packed] = list;
+            packedValuesEnd[packed] = (packed == 0 ? 0 : packedValuesEnd[packed - 1]) + to - from;
+            if (isDense(values, from, to)) {
+                packedFirstBlocks[packed++] = -(bitmapPosition + 1);
+                bitmapPosition = BitmapPostingList.write(values, from, to, bitmaps, bitmapPosition);
+                continue;
+            }
+            packedFirstBlocks[packed++] = block;
+            for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE) {
+                int blockTo = Math.min(blockFrom + BLOCK_SIZE, to);
+                int maxGap = 0;
+                for (int i = blockFrom + 1; i < blockTo; i++) {
+                    maxGap |= values[i] - values[i - 1] - 1;
+                }
+                int bits = 32 - Integer.numberOfLeadingZeros(maxGap);
+
+                blockFirst[block] = values[blockFrom];
+                blockBits[block] = (byte) bits;
+                blockOffsets[block] = (int) words;
+                words += ((long) (blockTo - blockFrom - 1) * bits + 31) / 32;
+                block++;
+            }
+        }
+        blockOffsets[blockCount] = (int) words;
+
+        // Second passage : écriture des écarts
+        int[] data = new int[(int) words];
+        block = 0;
+        for (int list = 0; list < listCount; list++) {
+            int from = offsets[list];
+            int to = offsets[list + 1];
+            if (!isPacked(to - from) || isDense(values, from, to)) {
+                continue;
+            }
+            for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE, block++) {
+                int bits = blockBits[block];
+                if (bits == 0) {
+                    // Identifiants consécutifs : rien à écrire
+                    continue;
+                }
+                long bitPosition = (long) blockOffsets[block] * 32;
+                for (int i = blockFrom + 1; i < Math.min(blockFrom + BLOCK_SIZE, to); i++, bitPosition += bits) {
+                    write(data, bitPosition, values[i] - values[i - 1] - 1);
+                }
+            }
+        }
+
+        return new CompressedLists(packedLists, packedFirstBlocks, packedValuesEnd, small,
+                blockFirst, blockOffsets, blockBits, data, bitmaps);
+    }
+
+    static boolean isPacked(int length) {
+        return length >= BLOCK_SIZE;
+    }
+
+    // Une liste triée est dense si elle contient au moins un identifiant sur
+    // DENSITY_THRESHOLD de son intervalle
+    private static boolean isDense(int[] values, int from, int to) {
+        long range = (long) values[to - 1] - values[from] + 1;
+        return range <= (long) (to - from) * DENSITY_THRESHOLD;
+    }
+
+    /**
+     * Liste n° {@code list}, qui occupait {@code [from, to)} dans le tableau des
+     * valeurs d'origine.
+     */
+    PostingList list(int list, int from, int to) {
+        if (from == to) {
+            return PostingList.EMPTY;
+        }
+
+        int packed = Arrays.binarySearch(packedLists, list);
+        if (packed >= 0) {
+            int firstBlock = packedFirstBlocks[packed];
+            if (firstBlock < 0) {
+                return new BitmapPostingList(bitmaps, -firstBlock - 1, to - from);
+            }
+            return new PackedPostingList(this, firstBlock, to - from);
+        }
+
+        // Les listes compressées qui la précèdent ne sont pas dans small
+        int packedBefore = -packed - 1;
+        int start = from - (packedBefore == 0 ? 0 : packedValuesEnd[packedBefore - 1]);
+        return new ArrayPostingList(small, start, start + to - from);
+    }
+
+    /**
+     * Décode les {@code length} identifiants du bloc {@code block} dans
+     * {@code destination} à partir de {@code offset}.
+     */
+    void decode(int block, int length, int[] destination, int offset) {
+        int bits = blockBits[block];
+        int mask = bits == 32 ? -1 : (1 << bits) - 1;
+        long bitPosition = (long) blockOffsets[block] * 32;
+
+        int value = blockFirst[block];
+        destination[offset] = value;
+        for (int i = 1; i < length; i++, bitPosition += bits) {
+            value += read(data, bitPosition, mask) + 1;
+            destination[offset + i] = value;
+        }
+    }
+
+    /**
+     * Identifiant n° {@code index} du bloc, sans décoder la suite.
+     */
+    int valueAt(int block, int index) {
+        int bits = blockBits[block];
+        int mask = bits == 32 ? -1 : (1 << bits) - 1;
+        long bitPosition = (long) blockOffsets[block] * 32;
+
+        int value = blockFirst[block];
+        for (int i = 1; i <= index; i++, bitPosition += bits) {
+            value += read(data, bitPosition, mask) + 1;
+        }
+        return value;
+    }
+
+    int blockFirst(int block) {
+        return blockFirst[block];
+    }
+
+    /**
+     * Dernier bloc de {@code [from, to)} dont le premier identifiant est
+     * inférieur ou égal à {@code target}, ou {@code from} s'il n'y en a pas ;
+     * la recherche part de {@code from} par galop.
+     */
+    int findBlock(int from, int to, int target) {
+        if (target == Integer.MAX_VALUE) {
+            return to - 1;
+        }
+        return Math.max(from, Intersection.gallop(blockFirst, from, to, target + 1) - 1);
+    }
+
+    /**
+     * Nombre d'octets occupés par les listes.
+     */
+    long byteSize() {
+        return (long) Integer.BYTES * (3 * packedLists.length + small.length + blockFirst.length + blockOffsets.length
+                + data.length) + blockBits.length + (long) Long.BYTES * bitmaps.length;
+    }
+
+    void writeTo(Snapshot.Writer writer) throws IOException {
+        writer.writeIntArray(packedLists, packedLists.length);
+        writer.writeIntArray(packedFirstBlocks, packedFirstBlocks.length);
+        writer.writeIntArray(packedValuesEnd, packedValuesEnd.length);
+        writer.writeIntArray(small, small.length);
+        writer.writeIntArray(blockFirst, blockFirst.length);
+        writer.writeIntArray(blockOffsets, blockOffsets.length);
+        writer.writeIntArray(data, data.length);
+
+        // Les largeurs tiennent sur un octet, on les regroupe par quatre
+        int[] bits = new int[(blockBits.length + 3) / 4];
+        for (int i = 0; i < blockBits.length; i++) {
+            bits[i / 4] |= (blockBits[i] & 0xFF) << (8 * (i % 4));
+        }
+        writer.writeInt(blockBits.length);
+        writer.writeIntArray(bits, bits.length);
+        writer.writeLongArray(bitmaps, bitmaps.length);
+    }
+
+    static CompressedLists readFrom(Snapshot.Reader reader) throws IOException {
+        int[] packedLists = reader.readIntArray();
+        int[] packedFirstBlocks = reader.readIntArray();
+        int[] packedValuesEnd = reader.readIntArray();
+        int[] small = reader.readIntArray();
+        int[] blockFirst = reader.readIntArray();
+        int[] blockOffsets = reader.readIntArray();
+        int[] data = reader.readIntArray();
+
+        byte[] blockBits = new byte[reader.readInt()];
+        int[] bits = reader.readIntArray();
+        for (int i = 0; i < blockBits.length; i++) {
+            blockBits[i] = (byte) (bits[i / 4] >>> (8 * (i % 4)));
+        }
+        long[] bitmaps = reader.readLongArray();
+        return new CompressedLists(packedLists, packedFirstBlocks, packedValuesEnd, small,
+                blockFirst, blockOffsets, blockBits, data, bitmaps);
+    }
+
+    private static void write(int[] data, long bitPosition, int value) {
+        int word = (int) (bitPosition >>> 5);
+        int shift = (int) (bitPosition & 31);
+        data[word] |= value << shift;
+        if (shift != 0 && word + 1 < data.length) {
+            data[word + 1] |= value >>> (32 - shift);
+        }
+    }
+
+    private static int read(int[] data, long bitPosition, int mask) {
+        if (mask == 0) {
+            return 0;
+        }
+        int word = (int) (bitPosition >>> 5);
+        int shift = (int) (bitPosition & 31);
+        long chunk = data[word] & 0xFFFFFFFFL;
+        if (word + 1 < data.length) {
+            chunk |= (long) data[word + 1] << 32;
+        }
+        return (int) (chunk >>> shift) & mask;
+    }
+}
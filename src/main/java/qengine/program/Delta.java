@@ -0,0 +1,293 @@
+package qengine.program;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+
+/**
+ * Modifications des données depuis la construction des index principaux :
+ * triples ajoutés et triples supprimés.
+ *
+ * <p>
+ * Un delta est immuable, et toujours exprimé par rapport aux index
+ * principaux : un triple ajouté n'y est pas, un triple supprimé y est. Les
+ * triples ajoutés et supprimés sont gardés triés dans l'ordre SPO ; les
+ * ajoutés, peu nombreux, ont en plus leurs six index et les supprimés l'index
+ * POS, pour retirer des sujets des listes des requêtes en étoile, construits
+ * à la première lecture.
+ * </p>
+ *
+ * <p>
+ * Chaque lot de modifications donne un nouveau delta ({@link #with}) ; quand
+ * les index principaux sont reconstruits avec un delta, ceux qui l'ont suivi
+ * sont ramenés aux nouveaux index avec {@link #rebase(Delta)}.
+ * </p>
+ */
+public final class Delta {
+    public static final Delta EMPTY = new Delta(new TripleBuffer(0), new TripleBuffer(0));
+
+    // Triples triés dans l'ordre SPO, sans doublon
+    private final TripleBuffer added;
+    private final TripleBuffer deleted;
+    // Construits à la première lecture : un index par permutation, dans
+    // l'ordre de Permutation, et l'index POS des triples supprimés
+    private final AtomicReferenceArray<Store> addedStores = new AtomicReferenceArray<>(Permutation.values().length);
+    private final AtomicReference<Store> deletedPos = new AtomicReference<>();
+
+    private Delta(TripleBuffer added, TripleBuffer deleted) {
+        this.added = added;
+        this.deleted = deleted;
+    }
+
+    /**
+     * Delta obtenu en appliquant un lot de suppressions puis un lot d'ajouts.
+     * Ce qui ne change rien est ignoré : ajout d'un triple déjà présent,
+     * suppression d'un triple absent.
+     *
+     * <p>
+     * Seul le lot est trié ; il est ensuite fusionné aux triples du delta, déjà
+     * triés, en un parcours.
+     * </p>
+     *
+     * @param base handler dont les index principaux servent de référence
+     */
+    public Delta with(TripleBuffer additions, TripleBuffer deletions, MainRDFHandler base) {
+        TripleBuffer removals = sorted(deletions);
+        TripleBuffer insertions = sorted(additions);
+
+        // Un triple supprimé l'est des ajouts du delta s'il y est, des index principaux sinon
+        TripleBuffer newAdded = difference(added, removals);
+        TripleBuffer newDeleted = union(deleted, inBase(difference(removals, added), base, true));
+        // Un triple ajouté annule sa suppression s'il était supprimé, s'ajoute sinon
+        newAdded = union(newAdded, inBase(difference(insertions, newDeleted), base, false));
+        newDeleted = difference(newDeleted, insertions);
+        return of(newAdded, newDeleted);
+    }
+
+    /**
+     * Ce delta, exprimé par rapport aux index principaux reconstruits avec
+     * {@code merged}, un delta plus ancien tiré des mêmes index que lui.
+     *
+     * <p>
+     * Un triple ajouté depuis {@code merged}, ou dont la suppression a été
+     * annulée depuis, est absent des nouveaux index ; un triple supprimé depuis
+     * {@code merged}, ou dont l'ajout a été annulé depuis, y est présent.
+     * </p>
+     */
+    public Delta rebase(Delta merged) {
+        TripleBuffer newAdded = union(difference(added, merged.added), difference(merged.deleted, deleted));
+        TripleBuffer newDeleted = union(difference(deleted, merged.deleted), difference(merged.added, added));
+        return of(newAdded, newDeleted);
+    }
+
+    private static Delta of(TripleBuffer added, TripleBuffer deleted) {
+        if (added.size() == 0 && deleted.size() == 0) {
+            return EMPTY;
+        }
+        return new Delta(added, deleted);
+    }
+
+    // Les triples d'un lot, triés et dédoublonnés par l'index SPO
+    private static TripleBuffer sorted(TripleBuffer triples) {
+        Store store = new Store();
+        store.build(triples, Permutation.SPO);
+        TripleBuffer sorted = new TripleBuffer(store.size());
+        store.appendTriples(sorted, Permutation.SPO);
+        return sorted;
+    }
+
+    // Triples de triples, triés, présents (ou absents) des index principaux
+    private static TripleBuffer inBase(TripleBuffer triples, MainRDFHandler base, boolean present) {
+        int[] data = triples.array();
+        TripleBuffer result = new TripleBuffer(triples.size());
+        for (int i = 0; i < 3 * triples.size(); i += 3) {
+            if (base.containsBase(data[i], data[i + 1], data[i + 2]) == present) {
+                result.add(data[i], data[i + 1], data[i + 2]);
+            }
+        }
+        return result;
+    }
+
+    private static TripleBuffer union(TripleBuffer left, TripleBuffer right) {
+        if (right.size() == 0) {
+            return left;
+        }
+        if (left.size() == 0) {
+            return right;
+        }
+        int[] l = left.array();
+        int[] r = right.array();
+        int leftEnd = 3 * left.size();
+        int rightEnd = 3 * right.size();
+        TripleBuffer result = new TripleBuffer(left.size() + right.size());
+        int i = 0;
+        int j = 0;
+        while (i < leftEnd || j < rightEnd) {
+            int order = i == leftEnd ? 1 : j == rightEnd ? -1 : compare(l, i, r, j);
+            if (order <= 0) {
+                result.add(l[i], l[i + 1], l[i + 2]);
+                i += 3;
+                j += order == 0 ? 3 : 0;
+            } else {
+                result.add(r[j], r[j + 1], r[j + 2]);
+                j += 3;
+            }
+        }
+        return result;
+    }
+
+    private static TripleBuffer difference(TripleBuffer left, TripleBuffer right) {
+        if (left.size() == 0 || right.size() == 0) {
+            return left;
+        }
+        int[] l = left.array();
+        int[] r = right.array();
+        int leftEnd = 3 * left.size();
+        int rightEnd = 3 * right.size();
+        TripleBuffer result = new TripleBuffer(left.size());
+        int j = 0;
+        for (int i = 0; i < leftEnd; i += 3) {
+            while (j < rightEnd && compare(r, j, l, i) < 0) {
+                j += 3;
+            }
+            if (j == rightEnd || compare(r, j, l, i) != 0) {
+                result.add(l[i], l[i + 1], l[i + 2]);
+            }
+        }
+        return result;
+    }
+
+    // Ordre SPO des triples commençant en left[i] et right[j]
+    private static int compare(int[] left, int i, int[] right, int j) {
+        int order = Integer.compare(left[i], right[j]);
+        if (order == 0) {
+            order = Integer.compare(left[i + 1], right[j + 1]);
+        }
+        return order != 0 ? order : Integer.compare(left[i + 2], right[j + 2]);
+    }
+
+    public boolean isEmpty() {
+        return added.size() == 0 && deleted.size() == 0;
+    }
+
+    /**
+     * Nombre de triples ajoutés.
+     */
+    public int getAddedCount() {
+        return added.size();
+    }
+
+    /**
+     * Nombre de triples supprimés.
+     */
+    public int getDeletedCount() {
+        return deleted.size();
+    }
+
+    /**
+     * Vrai si ce triple des index principaux a été supprimé.
+     */
+    boolean isDeleted(int subject, int predicate, int object) {
+        int[] data = deleted.array();
+        int[] triple = { subject, predicate, object };
+        int low = 0;
+        int high = deleted.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compare(data, 3 * middle, triple, 0);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index des triples ajoutés pour cette permutation.
+     */
+    Store getAddedStore(Permutation permutation) {
+        Store store = addedStores.get(permutation.ordinal());
+        if (store == null) {
+            store = build(added, permutation);
+            // Deux lecteurs peuvent le construire en même temps : le premier est gardé
+            if (!addedStores.compareAndSet(permutation.ordinal(), null, store)) {
+                store = addedStores.get(permutation.ordinal());
+            }
+        }
+        return store;
+    }
+
+    private Store getDeletedPos() {
+        Store store = deletedPos.get();
+        if (store == null) {
+            store = build(deleted, Permutation.POS);
+            if (!deletedPos.compareAndSet(null, store)) {
+                store = deletedPos.get();
+            }
+        }
+        return store;
+    }
+
+    private static Store build(TripleBuffer triples, Permutation permutation) {
+        Store store = new Store();
+        store.build(triples, permutation);
+        return store;
+    }
+
+    /**
+     * Ajoute les triples ajoutés à {@code triples}.
+     */
+    void appendAdded(TripleBuffer triples) {
+        triples.addAll(added);
+    }
+
+    /**
+     * Sujets du pattern (?s, {@code predicate}, {@code object}) : ceux de
+     * {@code base}, lue dans les index principaux, sauf les supprimés, et les
+     * ajoutés acceptés par {@code keep}. {@code base} est renvoyée telle quelle
+     * si le delta ne touche pas ce pattern.
+     */
+    PostingList apply(PostingList base, int predicate, int object, IntPredicate keep) {
+        if (isEmpty()) {
+            return base;
+        }
+        PostingList removed = getDeletedPos().twoValuesFilter(predicate, object);
+        PostingList inserted = getAddedStore(Permutation.POS).twoValuesFilter(predicate, object);
+        if (removed.isEmpty() && inserted.isEmpty()) {
+            return base;
+        }
+
+        int[] insertedSubjects = new int[inserted.size()];
+        int insertedCount = 0;
+        PostingList.Cursor cursor = inserted.cursor();
+        for (int subject = cursor.current(); subject != PostingList.Cursor.END; subject = cursor.advance()) {
+            if (keep.test(subject)) {
+                insertedSubjects[insertedCount++] = subject;
+            }
+        }
+        insertedSubjects = Arrays.copyOf(insertedSubjects, insertedCount);
+        int[] subjects = new int[base.size() + insertedSubjects.length];
+        int size = 0;
+        int next = 0;
+        // Les deux listes sont triées et disjointes : on les fusionne
+        PostingList.Cursor kept = base.cursor();
+        PostingList.Cursor gone = removed.cursor();
+        int subject = kept.current();
+        while (subject != PostingList.Cursor.END || next < insertedSubjects.length) {
+            if (subject != PostingList.Cursor.END && (next == insertedSubjects.length || subject < insertedSubjects[next])) {
+                if (gone.seek(subject) != subject) {
+                    subjects[size++] = subject;
+                }
+                subject = kept.advance();
+            } else {
+                subjects[size++] = insertedSubjects[next++];
+            }
+        }
+        return PostingList.of(size == subjects.length ? subjects : Arrays.copyOf(subjects, size));
+    }
+}
@@ -1,40 +1,88 @@
 package qengine.program;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Dictionnaire associant à chaque valeur un identifiant entier (à partir de 1).
+ *
+ * <p>
+ * Les identifiants sont attribués sous verrou par {@link #getKeyIfExists(Object)}
+ * pendant le chargement. Les lectures ({@link #lookup(Object)} et
+ * {@link #getValue(int)}) ne prennent aucun verrou et peuvent être faites par
+ * plusieurs threads de requête en même temps, sans jamais modifier le
+ * dictionnaire.
+ * </p>
+ */
 public class Dictionary<V> {
+    /**
+     * Identifiant renvoyé par {@link #lookup(Object)} pour une valeur inconnue.
+     */
+    public static final int ABSENT = -1;
 
-    private final HashMap<Integer, V> dictionary = new HashMap<Integer, V>();
-    private final HashMap<V, Integer> invertedDictionary = new HashMap<V, Integer>();
+    private final ConcurrentHashMap<V, Integer> invertedDictionary = new ConcurrentHashMap<>();
+    // Identifiant -> valeur, la case 0 n'est pas utilisée
+    private volatile Object[] dictionary = new Object[1024];
 
-    private Integer currentKey;
+    private int currentKey;
 
     public Dictionary() {
         currentKey = 0;
     }
 
-    public Integer getKeyIfExists(V value) {
-        if (getInvertedDictionary().containsKey(value)) {
-            return getInvertedDictionary().get(value);
+    /**
+     * Renvoie l'identifiant de la valeur, en lui en attribuant un nouveau si elle
+     * n'est pas encore dans le dictionnaire.
+     */
+    public int getKeyIfExists(V value) {
+        Integer key = invertedDictionary.get(value);
+        if (key != null) {
+            return key;
         }
 
-        currentKey++;
+        synchronized (this) {
+            key = invertedDictionary.get(value);
+            if (key != null) {
+                return key;
+            }
 
-        getDictionary().put(currentKey, value);
-        getInvertedDictionary().put(value, currentKey);
+            currentKey++;
 
-        return currentKey;
+            Object[] values = dictionary;
+            if (currentKey >= values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[currentKey] = value;
+            dictionary = values;
+
+            // Publiée en dernier : un lecteur qui voit l'identifiant voit aussi la valeur
+            invertedDictionary.put(value, currentKey);
+            return currentKey;
+        }
     }
 
-    public V getValue(Integer key) {
-        return getDictionary().get(key);
+    /**
+     * Renvoie l'identifiant de la valeur, ou {@link #ABSENT} si elle n'est pas
+     * dans le dictionnaire. N'insère jamais rien.
+     */
+    public int lookup(V value) {
+        Integer key = invertedDictionary.get(value);
+        return key == null ? ABSENT : key;
     }
 
-    public HashMap<Integer, V> getDictionary() {
-        return dictionary;
+    @SuppressWarnings("unchecked")
+    public V getValue(int key) {
+        Object[] values = dictionary;
+        if (key <= 0 || key >= values.length) {
+            return null;
+        }
+        return (V) values[key];
     }
 
-    public HashMap<V, Integer> getInvertedDictionary() {
-        return invertedDictionary;
+    /**
+     * Nombre de valeurs dans le dictionnaire.
+     */
+    public int size() {
+        return invertedDictionary.size();
     }
 }
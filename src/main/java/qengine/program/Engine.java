@@ -1,10 +1,5 @@
 package qengine.program;
 
-import org.apache.jena.query.*;
-import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
-import org.apache.jena.rdf.model.RDFNode;
-import org.apache.jena.util.FileManager;
 import org.eclipse.rdf4j.query.algebra.StatementPattern;
 import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
 import org.eclipse.rdf4j.query.parser.ParsedQuery;
@@ -12,6 +7,7 @@ import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFParser;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
 
 import java.io.FileReader;
 import java.io.IOException;
@@ -19,10 +15,17 @@ import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class Engine {
-    private static final MainRDFHandler rdfHandler = new MainRDFHandler();
+    // Version courante des données : chaque requête lit la sienne une seule fois
+    private volatile MainRDFHandler rdfHandler = new MainRDFHandler();
     private final int warmupPercentage;
     private String baseURI = null;
     //Votre répertoire de travail où vont se trouver les fichiers à lire
@@ -34,6 +37,34 @@ public class Engine {
     private boolean shuffleQueries = false;
     private boolean compareToJena = false;
     private long indexesCreationTime;
+    private boolean explain = false;
+    private String snapshotFile = null;
+    private int loaderThreads = 1;
+    private boolean fastParser = true;
+    private int shardCount = 1;
+    // Pool des évaluations par partition, partagé par toutes les versions des données
+    private ForkJoinPool shardPool = null;
+    private String indexes = "all";
+    private QueryMetrics metrics = new QueryMetrics();
+    private PlanCache planCache = new PlanCache(1024);
+    // Désactivés par défaut
+    private ResultCache resultCache = null;
+    private long postingListCacheBudget = 0;
+    private boolean compressLeaves = true;
+    private String resultsDirectory = ".";
+    private ResultWriter.Format resultFormat = ResultWriter.Format.CSV;
+    private boolean batch = false;
+    // Les mises à jour et la publication des fusions se font sous ce verrou
+    private final Object updateLock = new Object();
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "delta-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CompletableFuture<Void> pendingMerge = CompletableFuture.completedFuture(null);
+    private int mergeThreshold = 1 << 16;
+    // Fichiers (ajouts, suppressions) des mises à jour appliquées, pour Jena
+    private final List<String[]> appliedUpdates = new ArrayList<>();
 
     public Engine(String baseURI, String workingDir, String queryFile, String dataFile, boolean shuffle, boolean compareToJena, Integer warmupPercentage) {
         this.baseURI = baseURI;
@@ -47,85 +78,467 @@ public class Engine {
 
     // Renvoie le résultat d'une requête en étoile
     public static List<String> parseQuery(List<StatementPattern> patterns, MainRDFHandler rdfHandler) {
-        Store posStore = rdfHandler.getPosStore();
-
-        List<List<Integer>> filteredLists = patterns.parallelStream()
-                // Pour chacun des patterns de la requête
-                .map(pattern -> {
-                    // On récupère le prédicat et l'objet
-                    Integer predicateKey = rdfHandler.getDictionary().getKeyIfExists(pattern.getPredicateVar().getValue().stringValue());
-                    Integer objectKey = rdfHandler.getDictionary().getKeyIfExists(pattern.getObjectVar().getValue().stringValue());
-
-                    // On filtre les éléments qui concernent ce prédicat et cet objet
-                    return posStore.twoValuesFilter(predicateKey, objectKey);
-                })
-                // On en fait une liste de liste d'entiers
-                .toList();
-
-        // On retransforme cette liste en la liste de strings
-        // en utilisant notre dictionnaire
-        return findCommonElements(filteredLists)
-                .parallelStream()
-                //.stream()
-                .map(element -> rdfHandler.getDictionary().getValue(element))
-                .toList();
+        return decode(evaluate(QueryPlan.of(patterns, rdfHandler), rdfHandler, null, null, null), rdfHandler);
     }
 
-    // Trouve les éléments communs entre deux listes d'entiers
-    private static List<Integer> findCommonElements(List<List<Integer>> listOfLists) {
-        if (listOfLists == null || listOfLists.isEmpty()) {
-            return new ArrayList<>(); // Si une des listes est vide alors il n'y a aucun élément commun entre les listes
+    /**
+     * Évalue les patterns dans l'ordre du plan en intersectant au fur et à mesure.
+     * Dès que le résultat intermédiaire est vide, les listes des patterns restants
+     * ne sont même pas récupérées. Si les tableaux {@code patternSizes} et
+     * {@code intermediateSizes} sont fournis, on y note les cardinalités réelles
+     * de chaque étape (-1 pour les étapes non évaluées). Si {@code metrics} est
+     * fourni, on y chronomètre chaque récupération de liste et chaque
+     * intersection. Avec un {@code LIMIT}, la dernière intersection s'arrête dès
+     * que {@link QueryPlan#getRequiredResults()} solutions sont trouvées. Si
+     * l'index POS est partitionné ({@link Shards}), chaque partition est évaluée
+     * séparément. Les listes tiennent compte du delta de {@code rdfHandler}.
+     */
+    static int[] evaluate(QueryPlan plan, MainRDFHandler rdfHandler, int[] patternSizes, int[] intermediateSizes,
+                          QueryMetrics metrics) {
+        Shards shards = rdfHandler.getShards();
+        if (shards == null || plan.getSteps().isEmpty() || plan.isUnsatisfiable()) {
+            return evaluate(plan, rdfHandler::getPostingList, patternSizes, intermediateSizes, metrics);
         }
+        return evaluate(plan, rdfHandler, shards, patternSizes, intermediateSizes, metrics);
+    }
 
-        // On crée un ensemble pour s'assure d'ignorer les doublons
-        Set<Integer> commonElementsSet = new HashSet<>(listOfLists.getFirst());
+    /**
+     * Source des listes de sujets des patterns (prédicat, objet).
+     */
+    interface PatternLists {
+        PostingList get(int predicate, int object);
+    }
 
-        // Pour chacune des liste on transforme cette liste en ensemble
-        // puis on retiens les éléments communs aux deux ensembles
-        for (int i = 1; i < listOfLists.size(); i++) {
-            Set<Integer> currentListSet = new HashSet<>(listOfLists.get(i));
-            commonElementsSet.retainAll(currentListSet);
+    /**
+     * Évalue la requête sur chaque partition, dans le pool des partitions, et
+     * concatène les résultats : ils sont triés à l'intérieur de chaque
+     * partition. Les cardinalités notées sont les sommes sur les partitions.
+     */
+    private static int[] evaluate(QueryPlan plan, MainRDFHandler rdfHandler, Shards shards, int[] patternSizes,
+                                  int[] intermediateSizes, QueryMetrics metrics) {
+        int shape = plan.getSteps().size();
+        List<int[][]> results = shards.map(shard -> {
+            int[] shardPatternSizes = patternSizes == null ? null : new int[shape];
+            int[] shardIntermediateSizes = patternSizes == null ? null : new int[shape];
+            int[] keys = evaluate(plan, (predicate, object) -> rdfHandler.getShardPostingList(shard, predicate, object),
+                    shardPatternSizes, shardIntermediateSizes, metrics);
+            return new int[][]{keys, shardPatternSizes, shardIntermediateSizes};
+        });
+
+        if (patternSizes != null) {
+            Arrays.fill(patternSizes, -1);
+            Arrays.fill(intermediateSizes, -1);
+            for (int[][] result : results) {
+                for (int i = 0; i < shape; i++) {
+                    // -1 : étape non évaluée sur cette partition
+                    if (result[1][i] >= 0) {
+                        patternSizes[i] = Math.max(patternSizes[i], 0) + result[1][i];
+                        intermediateSizes[i] = Math.max(intermediateSizes[i], 0) + result[2][i];
+                    }
+                }
+            }
         }
 
-        // On convertit notre ensemble en liste
-        return new ArrayList<>(commonElementsSet);
+        int total = 0;
+        for (int[][] result : results) {
+            total += result[0].length;
+        }
+        int[] keys = new int[Math.min(total, plan.getRequiredResults())];
+        int position = 0;
+        for (int[][] result : results) {
+            int length = Math.min(result[0].length, keys.length - position);
+            System.arraycopy(result[0], 0, keys, position, length);
+            position += length;
+        }
+        return keys;
     }
 
-    // ========================================================================
+    private static int[] evaluate(QueryPlan plan, PatternLists patternLists, int[] patternSizes, int[] intermediateSizes,
+                                  QueryMetrics metrics) {
+        List<QueryPlan.Step> steps = plan.getSteps();
+        if (patternSizes != null) {
+            Arrays.fill(patternSizes, -1);
+            Arrays.fill(intermediateSizes, -1);
+        }
+        if (steps.isEmpty() || plan.isUnsatisfiable()) {
+            return Intersection.EMPTY;
+        }
 
-    private static List<String> processJenaResults(ResultSet resultSet) {
-        ArrayList<String> resultURLs = new ArrayList<>();
+        PostingList first = null;
+        // Résultat intermédiaire, alloué à la première intersection puis réduit sur place
+        int[] running = null;
+        int size = 0;
+        int limit = plan.getRequiredResults();
+
+        for (int i = 0; i < steps.size(); i++) {
+            QueryPlan.Step step = steps.get(i);
+            long begin = System.nanoTime();
+            // On filtre les éléments qui concernent ce prédicat et cet objet
+            PostingList filtered = patternLists.get(step.predicate(), step.object());
+            long fetched = System.nanoTime();
+            // Avec un LIMIT, la dernière intersection s'arrête dès qu'elle a assez de solutions
+            int stepLimit = i == steps.size() - 1 ? limit : Integer.MAX_VALUE;
+            if (i == 0) {
+                first = filtered;
+                if (steps.size() == 1) {
+                    running = Intersection.intersect(List.of(filtered), stepLimit);
+                }
+                size = running == null ? filtered.size() : running.length;
+            } else if (running == null) {
+                running = Intersection.intersect(List.of(first, filtered), stepLimit);
+                size = running.length;
+            } else {
+                size = Intersection.retainAll(running, size, filtered, stepLimit);
+            }
 
-        while (resultSet.hasNext()) {
-            QuerySolution solution = resultSet.nextSolution();
-            RDFNode resultNode = solution.get("v0");
+            if (metrics != null) {
+                metrics.record(QueryMetrics.Stage.LOOKUP, steps.size(), fetched - begin);
+                if (i > 0) {
+                    metrics.record(QueryMetrics.Stage.INTERSECTION, steps.size(), System.nanoTime() - fetched);
+                }
+            }
 
-            if (resultNode.isResource()) {
-                resultURLs.add(resultNode.asResource().getURI());
-            } else {
-                resultURLs.add(resultNode.toString());
+            if (patternSizes != null) {
+                patternSizes[i] = filtered.size();
+                intermediateSizes[i] = size;
+            }
+
+            if (size == 0) {
+                return Intersection.EMPTY;
             }
         }
-        return resultURLs;
+
+        return size == running.length ? running : Arrays.copyOf(running, size);
+    }
+
+    // On retransforme les identifiants en chaînes en utilisant notre dictionnaire
+    static List<String> decode(int[] keys, MainRDFHandler rdfHandler) {
+        return Arrays.stream(keys)
+                .mapToObj(element -> rdfHandler.getDictionary().getValue(element))
+                .toList();
     }
 
     // ========================================================================
 
-    private static List<String> getListFromFile(String file) throws IOException {
-        return Arrays.stream(Files.readString(Paths.get(file))
-                        .trim()
-                        .split("(?<=})"))
-                .map(String::trim)
-                .collect(Collectors.toList());
+    // Début d'une requête : mot-clé de prologue ou de forme de requête
+    private static final Pattern QUERY_START = Pattern.compile("(?i)(PREFIX|BASE|SELECT|ASK|CONSTRUCT|DESCRIBE)\\b");
+
+    /**
+     * Requêtes d'un fichier, les unes à la suite des autres. Une requête se
+     * termine au premier mot-clé de début de requête ({@code PREFIX},
+     * {@code SELECT}…) trouvé hors des accolades après son corps, de sorte que
+     * ses modificateurs ({@code LIMIT}, {@code OFFSET}…) lui restent attachés.
+     */
+    static List<String> getListFromFile(String file) throws IOException {
+        String text = Files.readString(Paths.get(file));
+        List<String> queries = new ArrayList<>();
+        Matcher start = QUERY_START.matcher(text);
+        int depth = 0;
+        int begin = 0;
+        boolean hasBody = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+                hasBody |= depth == 0;
+            } else if (hasBody && depth == 0 && Character.isLetter(c) && !isNameChar(text, i - 1)
+                    && start.region(i, text.length()).lookingAt()) {
+                queries.add(text.substring(begin, i).trim());
+                begin = i;
+                hasBody = false;
+            }
+        }
+        if (!text.substring(begin).isBlank()) {
+            queries.add(text.substring(begin).trim());
+        }
+        return queries;
+    }
+
+    // Vrai si le caractère fait partie d'un nom (variable ?select, préfixe ex:ask…)
+    private static boolean isNameChar(String text, int index) {
+        if (index < 0) {
+            return false;
+        }
+        char c = text.charAt(index);
+        return Character.isLetterOrDigit(c) || c == '?' || c == '$' || c == ':' || c == '_';
     }
 
     /**
      * Méthode utilisée ici lors du parsing de requête sparql pour agir sur l'objet
      * obtenu.
      */
-    public List<String> processAQuery(ParsedQuery query) {
-        List<StatementPattern> patterns = StatementPatternCollector.process(query.getTupleExpr());
-        return parseQuery(patterns, rdfHandler);
+    public QueryResult processAQuery(ParsedQuery query) {
+        long begin = System.nanoTime();
+        MainRDFHandler handler = rdfHandler;
+        return execute(QueryPlan.of(query, handler), handler, begin);
+    }
+
+    /**
+     * Évalue le texte d'une requête, par exemple reçue par le
+     * {@link QueryServer}. Voir {@link #processAQuery(String, SPARQLParser)}.
+     */
+    public QueryResult processAQuery(String query) {
+        return processAQuery(query, new SPARQLParser());
+    }
+
+    /**
+     * Évalue le texte d'une requête. Son plan est pris dans le {@link PlanCache}
+     * s'il y est ; sinon la requête est analysée, planifiée, et le plan mis en
+     * cache. L'analyse est comptée dans le temps de la requête.
+     */
+    private QueryResult processAQuery(String query, SPARQLParser sparqlParser) {
+        long begin = System.nanoTime();
+        MainRDFHandler handler = rdfHandler;
+        return execute(planOf(query, sparqlParser, handler), handler, begin);
+    }
+
+    // Plan de la requête, pris dans le cache ou compilé sur la version rdfHandler
+    private QueryPlan planOf(String query, SPARQLParser sparqlParser, MainRDFHandler rdfHandler) {
+        String normalizedQuery = PlanCache.normalize(query);
+        QueryPlan plan = planCache.get(normalizedQuery);
+        if (plan == null) {
+            plan = QueryPlan.of(sparqlParser.parseQuery(query, baseURI), rdfHandler);
+            // Un terme inconnu peut arriver avec une mise à jour : ce plan-là ne serait plus juste
+            if (!plan.isUnsatisfiable()) {
+                planCache.put(normalizedQuery, plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Évalue toutes les requêtes ensemble, sur une même version des données :
+     * les requêtes identiques (au sens de {@link PlanCache#normalize(String)})
+     * ne sont planifiées et évaluées qu'une fois, et les requêtes en étoile
+     * passent par {@link BatchEvaluator}, qui partage les listes et les
+     * intersections communes. Les résultats, dans l'ordre de {@code queries},
+     * sont ceux de l'évaluation requête par requête.
+     */
+    List<QueryResult> evaluateBatch(List<String> queries, SPARQLParser sparqlParser) {
+        MainRDFHandler handler = rdfHandler;
+        Map<String, Integer> distinctQueries = new HashMap<>();
+        List<String> texts = new ArrayList<>();
+        int[] slots = new int[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            String query = queries.get(i);
+            slots[i] = distinctQueries.computeIfAbsent(PlanCache.normalize(query), normalized -> {
+                texts.add(query);
+                return texts.size() - 1;
+            });
+        }
+
+        List<QueryPlan> plans = texts.parallelStream()
+                .map(query -> planOf(query, sparqlParser, handler))
+                .toList();
+        List<Integer> stars = new ArrayList<>();
+        List<Integer> joins = new ArrayList<>();
+        for (int i = 0; i < plans.size(); i++) {
+            (plans.get(i).getJoin() == null ? stars : joins).add(i);
+        }
+
+        int[][] keys = new int[plans.size()][];
+        BatchEvaluator.Batch starBatch = BatchEvaluator.evaluate(stars.stream().map(plans::get).toList(), handler);
+        for (int i = 0; i < stars.size(); i++) {
+            keys[stars.get(i)] = starBatch.keys()[i];
+        }
+        joins.parallelStream().forEach(i -> keys[i] = JoinEvaluator.evaluate(plans.get(i).getJoin(), handler,
+                plans.get(i).getRequiredResults(), null, null, metrics));
+
+        List<QueryResult> distinctResults = new ArrayList<>(plans.size());
+        for (int i = 0; i < plans.size(); i++) {
+            distinctResults.add(QueryResult.of(plans.get(i), keys[i], handler.getDictionary()));
+        }
+
+        System.out.println("Batch: " + queries.size() + " queries, " + plans.size() + " distinct ("
+                + stars.size() + " star, " + joins.size() + " join); " + starBatch.distinctPatterns()
+                + " pattern lists fetched for " + starBatch.patternReferences() + " pattern references; "
+                + starBatch.intersections() + " intersections instead of " + starBatch.perQueryIntersections());
+        return Arrays.stream(slots).mapToObj(distinctResults::get).toList();
+    }
+
+    /**
+     * Évalue un plan. Le résultat garde les identifiants et ne décode les termes
+     * qu'à la lecture : le décodage est chronométré par {@link Exporter}.
+     * {@code begin} est le début de l'analyse de la requête, pour les métriques.
+     * Toute l'évaluation se fait sur la version {@code rdfHandler} des données.
+     */
+    private QueryResult execute(QueryPlan plan, MainRDFHandler rdfHandler, long begin) {
+        int shape = plan.getShape();
+        long planned = System.nanoTime();
+        metrics.record(QueryMetrics.Stage.PARSE, shape, planned - begin);
+        metrics.recordDictionaryMisses(plan.getMissingTermCount());
+
+        int[] patternSizes = explain ? new int[shape] : null;
+        int[] intermediateSizes = explain ? new int[shape] : null;
+        int[] keys;
+        // Un résultat tronqué par LIMIT ne peut pas servir aux autres requêtes
+        boolean cacheable = !explain && !plan.isUnsatisfiable() && plan.getRequiredResults() == Integer.MAX_VALUE
+                && plan.getOffset() == 0 && plan.getJoin() == null;
+        String[] joins = explain && plan.getJoin() != null ? new String[shape] : null;
+        if (plan.getJoin() != null) {
+            keys = JoinEvaluator.evaluate(plan.getJoin(), rdfHandler, plan.getRequiredResults(), joins, intermediateSizes, metrics);
+        } else if (resultCache != null && cacheable) {
+            ResultCache.Key key = ResultCache.keyOf(plan, rdfHandler.getVersion());
+            keys = resultCache.get(key);
+            if (keys == null) {
+                keys = evaluate(plan, rdfHandler, null, null, metrics);
+                resultCache.put(key, keys);
+            }
+        } else {
+            keys = evaluate(plan, rdfHandler, patternSizes, intermediateSizes, metrics);
+        }
+
+        QueryResult results = QueryResult.of(plan, keys, rdfHandler.getDictionary());
+        metrics.record(QueryMetrics.Stage.TOTAL, shape, System.nanoTime() - begin);
+        metrics.recordResultSize(shape, results.count());
+
+        if (explain) {
+            // Un seul println pour ne pas mélanger les plans des requêtes évaluées en parallèle
+            System.out.println("Query plan (" + results.count() + " results):\n" + (plan.getJoin() != null
+                    ? plan.getJoin().explain(joins, intermediateSizes)
+                    : plan.explain(rdfHandler.getStatistics(), patternSizes, intermediateSizes)));
+        }
+        return results;
+    }
+
+    /**
+     * Nombre de plans gardés dans le {@link PlanCache} ; 0 le désactive.
+     */
+    public void setPlanCacheSize(int planCacheSize) {
+        planCache = new PlanCache(planCacheSize);
+    }
+
+    /**
+     * Active le {@link ResultCache} avec ce budget en octets ; 0 le désactive.
+     */
+    public void setResultCacheBudget(long budget) {
+        resultCache = budget > 0 ? new ResultCache(budget) : null;
+    }
+
+    /**
+     * Active le {@link PostingListCache} avec ce budget en octets ; 0 le
+     * désactive.
+     */
+    public void setPostingListCacheBudget(long budget) {
+        this.postingListCacheBudget = budget;
+    }
+
+    /**
+     * Taille du delta (triples ajoutés et supprimés) à partir de laquelle une
+     * mise à jour lance sa fusion dans les index principaux ; 0 fusionne après
+     * chaque mise à jour.
+     */
+    public void setMergeThreshold(int mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * Voir {@link MainRDFHandler#setCompressLeaves(boolean)}.
+     */
+    public void setCompressLeaves(boolean compressLeaves) {
+        this.compressLeaves = compressLeaves;
+    }
+
+    /**
+     * Répertoire où sont écrits les résultats des requêtes.
+     */
+    public void setResultsDirectory(String resultsDirectory) {
+        this.resultsDirectory = resultsDirectory;
+    }
+
+    public void setResultFormat(ResultWriter.Format resultFormat) {
+        this.resultFormat = resultFormat;
+    }
+
+    /**
+     * Évalue aussi le fichier de requêtes en un seul lot
+     * ({@link #evaluateBatch(List, SPARQLParser)}) après l'évaluation requête
+     * par requête, compare les résultats des deux et donne leurs temps.
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    public PlanCache getPlanCache() {
+        return planCache;
+    }
+
+    /**
+     * Mesures des requêtes évaluées depuis la fin de l'échauffement.
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public void setLoaderThreads(int loaderThreads) {
+        this.loaderThreads = loaderThreads;
+    }
+
+    /**
+     * Si faux, les données sont lues uniquement par Rio, sans passer par
+     * {@link NTriplesParser}.
+     */
+    public void setFastParser(boolean fastParser) {
+        this.fastParser = fastParser;
+    }
+
+    /**
+     * Nombre de partitions par sujet de l'index POS pour les requêtes en étoile
+     * ({@link Shards}) ; 1 désactive le partitionnement.
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    private synchronized ForkJoinPool shardPool() {
+        if (shardPool == null) {
+            shardPool = Shards.newPool(shardCount);
+        }
+        return shardPool;
+    }
+
+    /**
+     * Permutations à construire au chargement : {@code all}, {@code auto} (celles
+     * dont les requêtes de {@link #queryFile} ont besoin) ou une liste séparée par
+     * des virgules, par exemple {@code POS,PSO}. Les autres seront construites à
+     * la demande.
+     */
+    public void setIndexes(String indexes) {
+        this.indexes = indexes;
+    }
+
+    private Set<Permutation> materializedPermutations() throws IOException {
+        if (indexes.equalsIgnoreCase("all")) {
+            return EnumSet.allOf(Permutation.class);
+        }
+
+        Set<Permutation> permutations = EnumSet.noneOf(Permutation.class);
+        if (indexes.equalsIgnoreCase("auto")) {
+            // On regarde quelles positions sont connues dans chaque pattern du workload
+            SPARQLParser sparqlParser = new SPARQLParser();
+            for (String query : getListFromFile(queryFile)) {
+                for (StatementPattern pattern : StatementPatternCollector.process(sparqlParser.parseQuery(query, baseURI).getTupleExpr())) {
+                    permutations.add(Permutation.forPattern(pattern.getSubjectVar().hasValue(),
+                            pattern.getPredicateVar().hasValue(), pattern.getObjectVar().hasValue()));
+                }
+            }
+            return permutations;
+        }
+
+        for (String name : indexes.split(",")) {
+            permutations.add(Permutation.valueOf(name.trim().toUpperCase()));
+        }
+        return permutations;
     }
 
     /**
@@ -144,70 +557,268 @@ public class Engine {
         long queryReadTime = System.currentTimeMillis() - begin;
         if (warmupPercentage > 0) {
             int nbOfElements = warmupPercentage * (queryList.size() / 100);
-            queryList.subList(0, nbOfElements).forEach(element -> processAQuery(sparqlParser.parseQuery(element, baseURI)));
+            queryList.subList(0, nbOfElements).forEach(element -> processAQuery(element, sparqlParser));
+            // Les mesures de l'échauffement ne sont pas gardées
+            metrics = new QueryMetrics();
+            planCache.getStatistics().reset();
+            if (resultCache != null) {
+                resultCache.getStatistics().reset();
+            }
+            if (rdfHandler.getPostingListCache() != null) {
+                rdfHandler.getPostingListCache().getStatistics().reset();
+            }
         }
 
-        begin = System.currentTimeMillis();
-        List<List<String>> engineResults = queryList.parallelStream().map(element -> processAQuery(sparqlParser.parseQuery(element, baseURI))).toList();
-        long workloadEvaluationTime = System.currentTimeMillis() - begin;
+        // Les requêtes sont évaluées en parallèle ; pendant ce temps, les résultats
+        // déjà prêts sont écrits dans l'ordre des requêtes
+        long evaluationBegin = System.currentTimeMillis();
+        List<CompletableFuture<QueryResult>> evaluations = queryList.stream()
+                .map(element -> CompletableFuture.supplyAsync(() -> processAQuery(element, sparqlParser)))
+                .toList();
+        CompletableFuture<Long> evaluationTime = CompletableFuture.allOf(evaluations.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> System.currentTimeMillis() - evaluationBegin);
+
+        // Gardés seulement pour les comparaisons (-batch, -Jena) : sinon, un résultat
+        // écrit peut être libéré
+        List<List<String>> engineResults = batch || compareToJena ? new ArrayList<>(queryList.size()) : null;
+        try (ResultWriter writer = ResultWriter.open(Paths.get(resultsDirectory), resultFormat, metrics)) {
+            for (int i = 0; i < queryList.size(); i++) {
+                QueryResult result = evaluations.get(i).join();
+                writer.write(queryList.get(i), result);
+                if (engineResults != null) {
+                    engineResults.add(result);
+                }
+            }
+            System.out.println("Query results exported to: " + writer.getPath());
+        }
+        long workloadEvaluationTime = evaluationTime.join();
+
+        if (batch) {
+            // Mêmes caches au départ que l'évaluation requête par requête
+            invalidateCaches();
+            long batchBegin = System.currentTimeMillis();
+            List<QueryResult> batchResults = evaluateBatch(queryList, sparqlParser);
+            long batchEvaluationTime = System.currentTimeMillis() - batchBegin;
+
+            int differences = 0;
+            for (int i = 0; i < queryList.size(); i++) {
+                if (!batchResults.get(i).equals(engineResults.get(i))) {
+                    differences++;
+                    System.out.println("Batch result differs for query " + i + ": " + queryList.get(i));
+                }
+            }
+            System.out.println(differences == 0
+                    ? "Batch results are identical to per-query results"
+                    : "Batch results differ in " + differences + " of " + queryList.size() + " queries");
+            System.out.printf("Per-query Workload Evaluation Time (ms): %d\n", workloadEvaluationTime);
+            System.out.printf("Batch Workload Evaluation Time (ms): %d\n", batchEvaluationTime);
+        }
 
         Exporter exporter = new Exporter("output", dataFile, queryFile, rdfHandler.getTriplets(),
-                queryList.size(), Main.dataParsingTime, queryReadTime, 1, 6,
-                indexesCreationTime, workloadEvaluationTime, System.currentTimeMillis() - Main.startTime, engineResults, queryList);
-        exporter.handleResults(true);
+                queryList.size(), Main.dataParsingTime, queryReadTime, 1, rdfHandler.getBuiltStoreCount(),
+                indexesCreationTime, workloadEvaluationTime, System.currentTimeMillis() - Main.startTime);
+        exporter.setMetrics(metrics);
+        exporter.addCacheStatistics("plan", planCache.getStatistics());
+        if (resultCache != null) {
+            exporter.addCacheStatistics("result", resultCache.getStatistics());
+        }
+        if (rdfHandler.getPostingListCache() != null) {
+            // Compté à part : une requête servie par le cache de résultats ne le consulte pas
+            exporter.addCacheStatistics("pattern", rdfHandler.getPostingListCache().getStatistics());
+        }
+        // Les résultats ont déjà été écrits au fil de l'évaluation
+        exporter.handleResults();
 
         if (compareToJena) {
-            System.out.println("Starting: Jena Evaluation");
+            System.out.println("Starting: Verification against Jena");
 
             begin = System.currentTimeMillis();
-            List<List<String>> jenaResults = jenaResults(queryList, dataFile);
+            JenaVerifier verifier = JenaVerifier.load(dataFile, rdfHandler.getDictionary());
+            synchronized (updateLock) {
+                appliedUpdates.forEach(update -> verifier.applyUpdate(update[0], update[1]));
+            }
+            List<JenaVerifier.Mismatch> mismatches = verifier.verify(queryList, engineResults);
             Main.jenaTime = System.currentTimeMillis() - begin;
-            System.out.println("Finished: Jena Evaluation took " + Main.jenaTime + "ms");
-            System.out.println("Starting: Comparison against Jena");
-            if (checkCorrectnessAndCompletenessAgainstJena(jenaResults, engineResults)) {
+            System.out.println("Finished: Verification against Jena took " + Main.jenaTime + "ms");
+            if (mismatches.isEmpty()) {
                 System.out.println("Results are sound and complete against Jena");
             } else {
-                System.out.println("Discrepancies in result comparison against Jena");
+                System.out.println("Discrepancies against Jena in " + mismatches.size() + " of " + queryList.size() + " queries:");
+                mismatches.forEach(mismatch -> System.out.println("  " + mismatch));
             }
         }
     }
 
-    private boolean checkCorrectnessAndCompletenessAgainstJena(List<List<String>> engineResults, List<List<String>> jenaResults) {
-        boolean res = true;
-        for (int i = 0; (i < engineResults.size()) && res; i++) {
-            res = engineResults.get(i).parallelStream().sorted().toList().equals(jenaResults.get(i).stream().sorted().toList());
-        }
-        return res;
-    }
-
     /**
      * Traite chaque triple lu dans {@link #dataFile} avec {@link MainRDFHandler}.
+     *
+     * <p>
+     * Si un {@link #snapshotFile} est donné et existe déjà, les index sont relus
+     * depuis cet instantané au lieu de reparser les données ; sinon l'instantané
+     * est écrit une fois les données chargées.
+     * </p>
      */
     public void parseData() throws IOException {
+        if (snapshotFile != null && Files.exists(Paths.get(snapshotFile))) {
+            long begin = System.currentTimeMillis();
+            rdfHandler = Snapshot.load(Paths.get(snapshotFile));
+            if (shardCount > 1) {
+                rdfHandler.setShardPool(shardPool());
+                rdfHandler.buildShards(shardCount);
+            }
+            invalidateCaches();
+            indexesCreationTime = System.currentTimeMillis() - begin;
+            System.out.println("Loaded snapshot " + snapshotFile + " in " + indexesCreationTime + "ms");
+            return;
+        }
 
-        try (Reader dataReader = new FileReader(dataFile)) {
-            // On va parser des données au format ntriples
-            RDFParser rdfParser = Rio.createParser(RDFFormat.NTRIPLES);
+        Set<Permutation> permutations = materializedPermutations();
+        rdfHandler.setMaterialized(permutations);
+        rdfHandler.setCompressLeaves(compressLeaves);
+        rdfHandler.setShardCount(shardCount);
+        if (shardCount > 1) {
+            rdfHandler.setShardPool(shardPool());
+        }
+        System.out.println("Materialized indexes: " + permutations);
+
+        if (loaderThreads > 1 || fastParser) {
+            // Chargement par morceaux du fichier, en parallèle s'il y a plusieurs threads
+            BulkLoader loader = new BulkLoader(rdfHandler, loaderThreads);
+            loader.setFastParser(fastParser);
+            loader.load(Paths.get(dataFile), baseURI);
+        } else {
+            try (Reader dataReader = new FileReader(dataFile)) {
+                // On va parser des données au format ntriples
+                RDFParser rdfParser = Rio.createParser(RDFFormat.NTRIPLES);
+                // Même étiquette des nœuds anonymes que les autres chemins de chargement et que Jena
+                rdfParser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+
+                // On utilise notre implémentation de handler
+                rdfParser.setRDFHandler(rdfHandler);
+
+                // Parsing et traitement de chaque triple par le handler,
+                // les index sont construits à la fin du parsing
+                rdfParser.parse(dataReader, baseURI);
+            }
+        }
+        indexesCreationTime = rdfHandler.getIndexesCreationTime();
+        invalidateCaches();
 
-            // On utilise notre implémentation de handler
+        if (snapshotFile != null) {
             long begin = System.currentTimeMillis();
-            rdfParser.setRDFHandler(rdfHandler);
-            indexesCreationTime = System.currentTimeMillis() - begin;
+            Snapshot.write(rdfHandler, Paths.get(snapshotFile));
+            System.out.println("Wrote snapshot " + snapshotFile + " in " + (System.currentTimeMillis() - begin) + "ms");
+        }
+    }
 
-            // Parsing et traitement de chaque triple par le handler
-            rdfParser.parse(dataReader, baseURI);
+    /**
+     * Applique un lot de modifications lu dans des fichiers N-Triples : les
+     * triples de {@code deletionsFile} sont supprimés, puis ceux de
+     * {@code additionsFile} ajoutés. L'un des deux peut être {@code null}.
+     *
+     * <p>
+     * Les index principaux ne sont pas touchés : le lot est ajouté au
+     * {@link Delta} d'une nouvelle version des données, publiée d'un coup. Les
+     * requêtes en cours finissent sur la version où elles ont commencé, les
+     * suivantes voient la nouvelle, et aucune n'attend. Quand le delta atteint
+     * {@link #setMergeThreshold(int)} triples, sa fusion est lancée en tâche de
+     * fond ({@link #merge()}). Le lot peut être appliqué à tout moment, y
+     * compris pendant que le {@link QueryServer} répond à des requêtes.
+     * </p>
+     *
+     * @return le delta de la version publiée
+     */
+    public Delta applyUpdate(String additionsFile, String deletionsFile) throws IOException {
+        long begin = System.currentTimeMillis();
+        Delta delta;
+        synchronized (updateLock) {
+            MainRDFHandler current = rdfHandler;
+            TripleBuffer additions = readTriples(additionsFile, current.getDictionary());
+            TripleBuffer deletions = readTriples(deletionsFile, current.getDictionary());
+            delta = current.getDelta().with(additions, deletions, current);
+            publish(current.withDelta(delta));
+            appliedUpdates.add(new String[]{additionsFile, deletionsFile});
+        }
+        System.out.println("Applied update in " + (System.currentTimeMillis() - begin) + "ms (delta: +"
+                + delta.getAddedCount() + "/-" + delta.getDeletedCount() + " triples)");
+
+        if (delta.getAddedCount() + delta.getDeletedCount() >= mergeThreshold) {
+            merge();
+        }
+        return delta;
+    }
+
+    // Un lot est chargé comme un petit jeu de données, avec le dictionnaire des données
+    private TripleBuffer readTriples(String file, TermDictionary dictionary) throws IOException {
+        TripleBuffer triples = new TripleBuffer();
+        if (file == null) {
+            return triples;
+        }
+
+        MainRDFHandler batch = new MainRDFHandler(dictionary);
+        batch.setMaterialized(EnumSet.of(Permutation.SPO));
+        batch.setCompressLeaves(false);
+        BulkLoader loader = new BulkLoader(batch, loaderThreads);
+        loader.setFastParser(fastParser);
+        loader.load(Paths.get(file), baseURI);
+        batch.getSpoStore().appendTriples(triples, Permutation.SPO);
+        return triples;
+    }
+
+    /**
+     * Lance en tâche de fond, s'il n'y en a pas déjà une en cours, la fusion du
+     * delta courant dans de nouveaux index principaux
+     * ({@link MainRDFHandler#merge()}). Les requêtes continuent pendant ce temps
+     * sur les anciens index ; les mises à jour appliquées entre-temps restent
+     * dans le delta de la version publiée ({@link Delta#rebase(Delta)}).
+     */
+    public CompletableFuture<Void> merge() {
+        synchronized (updateLock) {
+            if (pendingMerge.isDone()) {
+                MainRDFHandler version = rdfHandler;
+                pendingMerge = CompletableFuture.runAsync(() -> merge(version), merger);
+            }
+            return pendingMerge;
         }
     }
 
-    private List<List<String>> jenaResults(List<String> queries, String data) {
-        Model model = ModelFactory.createDefaultModel();
-        model.read(dataFile, "NT");
-        //FileManager.get().readModel(model, data);
+    private void merge(MainRDFHandler version) {
+        Delta merged = version.getDelta();
+        if (merged.isEmpty()) {
+            return;
+        }
 
-        return queries.parallelStream().map(query -> {
-            QueryExecution queryExecutor = QueryExecutionFactory.create(QueryFactory.create(query), model);
-            return processJenaResults(queryExecutor.execSelect());
-        }).toList();
+        long begin = System.currentTimeMillis();
+        MainRDFHandler base = version.merge();
+        synchronized (updateLock) {
+            Delta remaining = rdfHandler.getDelta().rebase(merged);
+            publish(remaining.isEmpty() ? base : base.withDelta(remaining));
+            // Les plans suivants profiteront des statistiques à jour
+            planCache.clear();
+        }
+        System.out.println("Merged delta (+" + merged.getAddedCount() + "/-" + merged.getDeletedCount()
+                + " triples) into the main indexes in " + (System.currentTimeMillis() - begin) + "ms");
+    }
+
+    // Publie une nouvelle version des données ; la précédente reste valable pour
+    // les requêtes qui l'ont déjà lue
+    private void publish(MainRDFHandler version) {
+        version.setPostingListCacheBudget(postingListCacheBudget);
+        rdfHandler = version;
+        if (resultCache != null) {
+            // Les résultats en cache sont propres à une version : on libère la place
+            resultCache.clear();
+        }
+    }
+
+    // Les plans, résultats et listes en cache portent sur les données d'avant :
+    // le cache de listes est recréé pour le nouveau handler
+    private void invalidateCaches() {
+        rdfHandler.setPostingListCacheBudget(postingListCacheBudget);
+        planCache.clear();
+        if (resultCache != null) {
+            resultCache.clear();
+        }
     }
 
 }
\ No newline at end of file
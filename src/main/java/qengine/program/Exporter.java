@@ -2,11 +2,13 @@ package qengine.program;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Exporter {
     private String path = "";
@@ -21,8 +23,8 @@ public class Exporter {
     private long indexesCreationTime = 0;
     private long workloadEvaluationTime = 0;
     private long totalTimeElapsed = 0;
-    private List<List<String>> results = null;
-    private List<String> queries = null;
+    private QueryMetrics metrics = null;
+    private final Map<String, CacheStatistics> caches = new LinkedHashMap<>();
 
     public Exporter(String path,
                     String dataFile,
@@ -35,9 +37,7 @@ public class Exporter {
                     Integer numberOfIndexes,
                     long indexesCreationTime,
                     long workloadEvaluationTime,
-                    long totalTimeElapsed,
-                    List<List<String>> results,
-                    List<String> queries
+                    long totalTimeElapsed
     ) {
         setPath(path);
         setDataFile(dataFile);
@@ -51,19 +51,9 @@ public class Exporter {
         setIndexesCreationTime(indexesCreationTime);
         setWorkloadEvaluationTime(workloadEvaluationTime);
         setTotalTimeElapsed(totalTimeElapsed);
-        setResults(results);
-        setQueries(queries);
     }
 
-    public List<List<String>> getResults() {
-        return results;
-    }
-
-    public void setResults(List<List<String>> results) {
-        this.results = results;
-    }
-
-    public void handleResults(boolean exportToCSV) {
+    public void handleResults() {
         // Exportation to CSV file
         try {
             // Create CSV file content
@@ -83,21 +73,6 @@ public class Exporter {
             DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy_MM_dd_HH:mm:ss");
             LocalDateTime now = LocalDateTime.now();
 
-            if (exportToCSV) {
-                String outputResultsPath = "/results" + dtf.format(now) + ".csv";
-                StringBuilder resultContent = new StringBuilder();
-                resultContent.append("query,results\n");
-                for (int i = 0; i < results.size(); i += 1) {
-                    resultContent.append('"').append(getQueries().get(i)).append('"').append(',');
-                    resultContent.append('"');
-                    resultContent.append(getResults().get(i));
-                    resultContent.append('"');
-                    resultContent.append('\n');
-                }
-
-                Files.write(Paths.get(outputResultsPath), resultContent.toString().getBytes());
-            }
-
             String path = Main.outputPath;
             //System.out.println(path);
             //Files.write(Paths.get(getPath() + "/output" + dtf.format(now) + ".csv"), csvContent.getBytes());
@@ -105,6 +80,15 @@ public class Exporter {
             //System.out.println("Results exported to CSV: " + getPath() + "/output" + dtf.format(now) + ".csv");
             System.out.println("Results exported to CSV: " + path);
 
+            if (getMetrics() != null) {
+                // Rapport détaillé à côté du fichier de mesures
+                Path metricsPath = Paths.get(path).toAbsolutePath().resolveSibling("metrics" + dtf.format(now) + ".json");
+                Files.writeString(metricsPath, getMetrics().toJson(caches));
+                System.out.println("Query metrics exported to JSON: " + metricsPath);
+                System.out.print(getMetrics().summary());
+            }
+            caches.forEach((name, statistics) -> System.out.println("Cache " + name + ": " + statistics));
+
             System.out.printf("Data Read Time (ms): %d\n", Math.max(1, getDataReadTime()));
             System.out.printf("Query Read Time (ms): %d\n", Math.max(1, getQueryReadTime()));
             System.out.printf("Dictionary Creation Time (ms): %d\n",
@@ -119,12 +103,19 @@ public class Exporter {
         }
     }
 
-    public List<String> getQueries() {
-        return queries;
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(QueryMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    public void setQueries(List<String> queries) {
-        this.queries = queries;
+    /**
+     * Ajoute les compteurs d'un cache au rapport, sous ce nom.
+     */
+    public void addCacheStatistics(String name, CacheStatistics statistics) {
+        caches.put(name, statistics);
     }
 
     public String getPath() {
@@ -0,0 +1,320 @@
+package qengine.program;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Intersection de plusieurs listes d'identifiants triées (algorithme
+ * « leapfrog »).
+ *
+ * <p>
+ * On part du premier identifiant de la plus petite liste ; chaque liste, à tour
+ * de rôle, saute par recherche exponentielle (galop) jusqu'au premier
+ * identifiant supérieur ou égal au candidat courant. Quand toutes les listes
+ * s'accordent sur le candidat, il fait partie du résultat. Dès qu'une liste est
+ * épuisée, l'intersection est terminée.
+ * </p>
+ *
+ * <p>
+ * Si toutes les listes sont des tableaux, le galop se fait directement dans les
+ * tableaux ; sinon (listes compressées), chaque liste est parcourue par son
+ * {@link PostingList.Cursor}, qui saute les blocs sans les décoder.
+ * </p>
+ *
+ * <p>
+ * Les listes en bitmap ({@link BitmapPostingList}) sont mises à part : entre
+ * elles, l'intersection est un ET mot par mot ; avec les autres listes, on
+ * intersecte d'abord celles-ci, puis on garde les identifiants présents dans
+ * chaque bitmap, par simple test de bit.
+ * </p>
+ */
+public final class Intersection {
+    public static final int[] EMPTY = new int[0];
+
+    private Intersection() {
+    }
+
+    /**
+     * Renvoie, triés par ordre croissant, les identifiants présents dans toutes
+     * les listes.
+     */
+    public static int[] intersect(List<PostingList> lists) {
+        return intersect(lists, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Comme {@link #intersect(List)}, mais s'arrête dès que les {@code limit}
+     * plus petits identifiants communs ont été trouvés.
+     */
+    public static int[] intersect(List<PostingList> lists, int limit) {
+        if (lists == null || lists.isEmpty() || limit <= 0) {
+            return EMPTY;
+        }
+
+        PostingList[] sorted = lists.toArray(new PostingList[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(PostingList::size));
+
+        if (sorted[0].isEmpty()) {
+            return EMPTY;
+        }
+        if (sorted.length == 1) {
+            return limit >= sorted[0].size() ? sorted[0].toIntArray() : prefix(sorted[0], limit);
+        }
+
+        int bitmapCount = 0;
+        boolean arraysOnly = true;
+        for (PostingList list : sorted) {
+            if (list instanceof BitmapPostingList) {
+                bitmapCount++;
+            }
+            arraysOnly &= list instanceof ArrayPostingList;
+        }
+        if (arraysOnly) {
+            return intersectArrays(sorted, limit);
+        }
+        if (bitmapCount == 0) {
+            return intersectCursors(sorted, limit);
+        }
+
+        // Les bitmaps d'un côté, les autres listes (toujours triées par taille) de l'autre
+        BitmapPostingList[] bitmaps = new BitmapPostingList[bitmapCount];
+        PostingList[] others = new PostingList[sorted.length - bitmapCount];
+        int bitmapIndex = 0;
+        int otherIndex = 0;
+        for (PostingList list : sorted) {
+            if (list instanceof BitmapPostingList bitmap) {
+                bitmaps[bitmapIndex++] = bitmap;
+            } else {
+                others[otherIndex++] = list;
+            }
+        }
+
+        if (others.length == 0) {
+            return intersectBitmaps(bitmaps, Math.min(sorted[0].size(), limit), limit);
+        }
+        int[] candidates = others.length == 1 ? others[0].toIntArray() : intersect(Arrays.asList(others));
+        return probe(candidates, bitmaps, limit);
+    }
+
+    // Toutes les listes sont des tableaux, triés par taille
+    private static int[] intersectArrays(PostingList[] sorted, int limit) {
+        int listCount = sorted.length;
+        int[][] arrays = new int[listCount][];
+        int[] positions = new int[listCount];
+        int[] ends = new int[listCount];
+        for (int i = 0; i < listCount; i++) {
+            ArrayPostingList list = (ArrayPostingList) sorted[i];
+            arrays[i] = list.array();
+            positions[i] = list.from();
+            ends[i] = list.to();
+        }
+
+        int[] result = new int[Math.min(sorted[0].size(), limit)];
+        int count = 0;
+
+        int candidate = arrays[0][positions[0]];
+        // Nombre de listes consécutives positionnées sur le candidat
+        int agreeing = 1;
+        int current = 1;
+
+        while (true) {
+            int position = gallop(arrays[current], positions[current], ends[current], candidate);
+            if (position == ends[current]) {
+                break;
+            }
+            positions[current] = position;
+
+            int value = arrays[current][position];
+            if (value == candidate) {
+                agreeing++;
+                if (agreeing == listCount) {
+                    result[count++] = candidate;
+                    if (count == limit) {
+                        break;
+                    }
+
+                    positions[current]++;
+                    if (positions[current] == ends[current]) {
+                        break;
+                    }
+                    candidate = arrays[current][positions[current]];
+                    agreeing = 1;
+                }
+            } else {
+                candidate = value;
+                agreeing = 1;
+            }
+
+            current = (current + 1) % listCount;
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    // ET mot par mot sur la partie commune des bitmaps (leurs bases sont alignées sur 64)
+    private static int[] intersectBitmaps(BitmapPostingList[] bitmaps, int maxSize, int limit) {
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (BitmapPostingList bitmap : bitmaps) {
+            from = Math.max(from, bitmap.base());
+            to = Math.min(to, bitmap.base() + ((long) bitmap.wordCount() << 6));
+        }
+
+        int[] result = new int[maxSize];
+        int count = 0;
+        for (long start = from; start < to && count < limit; start += 64) {
+            long bits = -1L;
+            for (int i = 0; i < bitmaps.length && bits != 0; i++) {
+                BitmapPostingList bitmap = bitmaps[i];
+                bits &= bitmap.words()[bitmap.firstWord() + (int) ((start - bitmap.base()) >>> 6)];
+            }
+            for (; bits != 0 && count < limit; bits &= bits - 1) {
+                result[count++] = (int) start + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Garde les candidats présents dans tous les bitmaps
+    private static int[] probe(int[] candidates, BitmapPostingList[] bitmaps, int limit) {
+        int count = 0;
+        for (int i = 0; i < candidates.length && count < limit; i++) {
+            int candidate = candidates[i];
+            boolean everywhere = true;
+            for (int j = 0; j < bitmaps.length && everywhere; j++) {
+                everywhere = bitmaps[j].containsInt(candidate);
+            }
+            if (everywhere) {
+                candidates[count++] = candidate;
+            }
+        }
+        return count == candidates.length ? candidates : Arrays.copyOf(candidates, count);
+    }
+
+    // Les limit premiers identifiants d'une liste
+    private static int[] prefix(PostingList list, int limit) {
+        int[] result = new int[limit];
+        PostingList.Cursor cursor = list.cursor();
+        result[0] = cursor.current();
+        for (int i = 1; i < limit; i++) {
+            result[i] = cursor.advance();
+        }
+        return result;
+    }
+
+    // Même algorithme, sur des curseurs ; les listes sont triées par taille
+    private static int[] intersectCursors(PostingList[] sorted, int limit) {
+        int listCount = sorted.length;
+        PostingList.Cursor[] cursors = new PostingList.Cursor[listCount];
+        for (int i = 0; i < listCount; i++) {
+            cursors[i] = sorted[i].cursor();
+        }
+
+        int[] result = new int[Math.min(sorted[0].size(), limit)];
+        int count = 0;
+
+        int candidate = cursors[0].current();
+        int agreeing = 1;
+        int current = 1;
+
+        while (true) {
+            int value = cursors[current].seek(candidate);
+            if (value == PostingList.Cursor.END) {
+                break;
+            }
+
+            if (value == candidate) {
+                agreeing++;
+                if (agreeing == listCount) {
+                    result[count++] = candidate;
+                    if (count == limit) {
+                        break;
+                    }
+
+                    candidate = cursors[current].advance();
+                    if (candidate == PostingList.Cursor.END) {
+                        break;
+                    }
+                    agreeing = 1;
+                }
+            } else {
+                candidate = value;
+                agreeing = 1;
+            }
+
+            current = (current + 1) % listCount;
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Garde, sur place, les identifiants de {@code ids[0, size)} présents dans
+     * {@code list}, au plus {@code limit}, et renvoie leur nombre. On parcourt
+     * la plus petite des deux listes en cherchant ses éléments dans l'autre.
+     */
+    static int retainAll(int[] ids, int size, PostingList list, int limit) {
+        int kept = 0;
+        if (list.size() < size) {
+            int from = 0;
+            PostingList.Cursor cursor = list.cursor();
+            for (int id = cursor.current(); id != PostingList.Cursor.END && kept < limit; id = cursor.advance()) {
+                from = gallop(ids, from, size, id);
+                if (from == size) {
+                    break;
+                }
+                if (ids[from] == id) {
+                    // kept <= from : on n'écrase que des identifiants déjà lus
+                    ids[kept++] = id;
+                    from++;
+                }
+            }
+        } else {
+            PostingList.Cursor cursor = list.cursor();
+            for (int i = 0; i < size && kept < limit; i++) {
+                int found = cursor.seek(ids[i]);
+                if (found == PostingList.Cursor.END) {
+                    break;
+                }
+                if (found == ids[i]) {
+                    ids[kept++] = ids[i];
+                }
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Renvoie l'indice du premier élément de {@code array[from, to)} supérieur ou
+     * égal à {@code target}, ou {@code to} s'il n'y en a pas.
+     */
+    static int gallop(int[] array, int from, int to, int target) {
+        if (from >= to || array[from] >= target) {
+            return from;
+        }
+
+        // Recherche exponentielle d'un intervalle ]low, high] contenant la cible
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < to && array[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, to);
+
+        // Puis recherche dichotomique dans cet intervalle
+        low++;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (array[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
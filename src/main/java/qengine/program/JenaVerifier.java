@@ -0,0 +1,278 @@
+package qengine.program;
+
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.lang.LabelToNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Vérification des résultats du moteur contre Jena, requête par requête et en
+ * parallèle.
+ *
+ * <p>
+ * Les deux résultats ne sont jamais comparés sous forme de listes de chaînes
+ * triées : chacun est résumé par une empreinte indépendante de l'ordre des
+ * solutions (leur nombre et deux sommes de hachés), calculée sur les
+ * identifiants du dictionnaire. Les solutions de Jena sont lues au fil de
+ * l'eau, sans être gardées.
+ * </p>
+ *
+ * <p>
+ * Pour une requête dont les empreintes diffèrent, la requête Jena est
+ * réévaluée pour donner un échantillon des solutions manquantes ou en trop ;
+ * seul le résultat du moteur, déjà en mémoire, sert alors de référence.
+ * </p>
+ */
+public class JenaVerifier {
+    // Nombre de solutions montrées de chaque côté pour une requête en erreur
+    private static final int SAMPLE_SIZE = 5;
+
+    private final Model model;
+    private final TermDictionary dictionary;
+
+    public JenaVerifier(Model model, TermDictionary dictionary) {
+        this.model = model;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Charge les données N-Triples dans un modèle Jena en mémoire.
+     */
+    public static JenaVerifier load(String dataFile, TermDictionary dictionary) {
+        return new JenaVerifier(read(dataFile), dictionary);
+    }
+
+    // Les étiquettes des nœuds anonymes sont gardées telles quelles, comme dans
+    // le moteur (PRESERVE_BNODE_IDS) : _:b1 est le même nœud dans tous les fichiers
+    private static Model read(String file) {
+        Model model = ModelFactory.createDefaultModel();
+        RDFParser.create()
+                .source(file)
+                .lang(Lang.NTRIPLES)
+                .labelToNode(LabelToNode.createUseLabelAsGiven())
+                .parse(model);
+        return model;
+    }
+
+    /**
+     * Applique au modèle un lot de modifications, comme
+     * {@link Engine#applyUpdate(String, String)} : les suppressions, puis les
+     * ajouts. L'un des deux fichiers peut être {@code null}.
+     */
+    public void applyUpdate(String additionsFile, String deletionsFile) {
+        if (deletionsFile != null) {
+            model.remove(read(deletionsFile));
+        }
+        if (additionsFile != null) {
+            model.add(read(additionsFile));
+        }
+    }
+
+    /**
+     * Une requête dont le résultat diffère de celui de Jena.
+     *
+     * @param index      position de la requête dans le workload
+     * @param engineSize nombre de solutions du moteur
+     * @param jenaSize   nombre de solutions de Jena
+     * @param missing    échantillon de solutions de Jena absentes du moteur
+     * @param unexpected échantillon de solutions du moteur absentes de Jena
+     */
+    public record Mismatch(int index, long engineSize, long jenaSize, List<String> missing, List<String> unexpected) {
+        @Override
+        public String toString() {
+            return "Query #" + index + ": " + engineSize + " results, Jena " + jenaSize
+                    + ", missing " + missing + ", unexpected " + unexpected;
+        }
+    }
+
+    // Empreinte d'un multiensemble de solutions
+    private static final class Fingerprint {
+        long count;
+        long sum;
+        long mixedSum;
+
+        void add(long hash) {
+            count++;
+            sum += hash;
+            mixedSum += mix(hash ^ 0x5851F42D4C957F2DL);
+        }
+
+        boolean matches(Fingerprint other) {
+            return count == other.count && sum == other.sum && mixedSum == other.mixedSum;
+        }
+    }
+
+    /**
+     * Évalue chaque requête avec Jena et renvoie celles dont le résultat diffère
+     * de {@code engineResults}, dans l'ordre du workload.
+     */
+    public List<Mismatch> verify(List<String> queries, List<List<String>> engineResults) {
+        return IntStream.range(0, queries.size())
+                .parallel()
+                .mapToObj(i -> verify(i, queries.get(i), engineResults.get(i)))
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    private Mismatch verify(int index, String query, List<String> engineResult) {
+        Fingerprint expected = new Fingerprint();
+        int size = engineResult instanceof QueryResult result && !result.isCountOnly() ? result.count() : engineResult.size();
+        for (int i = 0; i < size; i++) {
+            expected.add(engineHash(engineResult, i));
+        }
+
+        Fingerprint actual = new Fingerprint();
+        try (QueryExecution execution = QueryExecutionFactory.create(QueryFactory.create(query), model)) {
+            ResultSet resultSet = execution.execSelect();
+            List<String> variables = resultSet.getResultVars();
+            while (resultSet.hasNext()) {
+                actual.add(rowHash(rowOf(resultSet.nextSolution(), variables)));
+            }
+        }
+
+        if (expected.matches(actual)) {
+            return null;
+        }
+        return diff(index, query, engineResult, expected.count, actual.count);
+    }
+
+    // Seconde évaluation par Jena, pour un échantillon des différences
+    private Mismatch diff(int index, String query, List<String> engineResult, long engineSize, long jenaSize) {
+        long[] engineHashes = new long[engineResult.size()];
+        for (int i = 0; i < engineHashes.length; i++) {
+            engineHashes[i] = engineHash(engineResult, i);
+        }
+        long[] sortedHashes = engineHashes.clone();
+        Arrays.sort(sortedHashes);
+        // Solutions du moteur retrouvées chez Jena, par position dans sortedHashes
+        BitSet seen = new BitSet(sortedHashes.length);
+
+        List<String> missing = new ArrayList<>();
+        try (QueryExecution execution = QueryExecutionFactory.create(QueryFactory.create(query), model)) {
+            ResultSet resultSet = execution.execSelect();
+            List<String> variables = resultSet.getResultVars();
+            while (resultSet.hasNext()) {
+                String[] row = rowOf(resultSet.nextSolution(), variables);
+                int position = firstUnseen(sortedHashes, seen, rowHash(row));
+                if (position < 0) {
+                    if (missing.size() < SAMPLE_SIZE) {
+                        missing.add(String.join("\t", row));
+                    }
+                } else {
+                    seen.set(position);
+                }
+            }
+        }
+
+        List<String> unexpected = new ArrayList<>();
+        for (int i = 0; i < engineHashes.length && unexpected.size() < SAMPLE_SIZE; i++) {
+            int position = firstUnseen(sortedHashes, seen, engineHashes[i]);
+            if (position >= 0) {
+                // Marquée pour ne pas signaler deux fois la même solution
+                seen.set(position);
+                unexpected.add(engineResult.get(i));
+            }
+        }
+        return new Mismatch(index, engineSize, jenaSize, missing, unexpected);
+    }
+
+    // Première occurrence non encore vue de hash dans sortedHashes, ou -1
+    private static int firstUnseen(long[] sortedHashes, BitSet seen, long hash) {
+        int position = Arrays.binarySearch(sortedHashes, hash);
+        if (position < 0) {
+            return -1;
+        }
+        while (position > 0 && sortedHashes[position - 1] == hash) {
+            position--;
+        }
+        for (; position < sortedHashes.length && sortedHashes[position] == hash; position++) {
+            if (!seen.get(position)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // Haché de la solution n° index du moteur, sans décodage si possible
+    private long engineHash(List<String> engineResult, int index) {
+        if (engineResult instanceof QueryResult result && !result.isCountOnly()) {
+            long hash = 0;
+            for (int column = 0; column < result.width(); column++) {
+                hash = combine(hash, mix(result.keyAt(index, column)));
+            }
+            return hash;
+        }
+        return rowHash(engineResult.get(index).split("\t", -1));
+    }
+
+    private long rowHash(String[] row) {
+        long hash = 0;
+        for (String term : row) {
+            hash = combine(hash, hash(term));
+        }
+        return hash;
+    }
+
+    // Les termes d'une solution de Jena, dans l'ordre du SELECT
+    private static String[] rowOf(QuerySolution solution, List<String> variables) {
+        String[] row = new String[variables.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = termOf(solution.get(variables.get(i)));
+        }
+        return row;
+    }
+
+    // Haché d'une solution, qui dépend de l'ordre des colonnes
+    private static long combine(long rowHash, long termHash) {
+        return mix(rowHash * 31 + termHash);
+    }
+
+    // Même représentation que le dictionnaire : IRI, étiquette du nœud anonyme, ou
+    // forme lexicale du littéral
+    private static String termOf(RDFNode node) {
+        if (node == null) {
+            return "";
+        }
+        if (node.isAnon()) {
+            return node.asResource().getId().getLabelString();
+        }
+        if (node.isResource()) {
+            return node.asResource().getURI();
+        }
+        if (node.isLiteral()) {
+            return node.asLiteral().getLexicalForm();
+        }
+        return node.toString();
+    }
+
+    // Haché de l'identifiant du terme ; un terme absent du dictionnaire est haché
+    // sur sa chaîne, avec le bit de poids fort pour ne pas croiser un identifiant
+    private long hash(String term) {
+        int key = dictionary.getKeyIfExists(term);
+        if (key != TermDictionary.ABSENT) {
+            return mix(key);
+        }
+        return mix((term.hashCode() & 0xFFFFFFFFL) | (1L << 63));
+    }
+
+    // Finaliseur de SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
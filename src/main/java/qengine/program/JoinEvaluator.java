@@ -0,0 +1,401 @@
+package qengine.program;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Évaluation d'un {@link JoinPlan} par jointures successives sur les
+ * identifiants du dictionnaire.
+ *
+ * <p>
+ * Les liaisons sont gardées dans une table de lignes d'entiers, une colonne par
+ * variable. On part d'une ligne vide, puis chaque pattern est joint à la table,
+ * dans l'ordre du plan, de l'une des deux façons suivantes :
+ * </p>
+ * <ul>
+ * <li>jointure par index : pour chaque ligne, les variables déjà liées sont
+ * remplacées par leur valeur et le pattern est cherché dans l'index dont les
+ * premières clés sont ses positions connues
+ * ({@link Permutation#forPattern(boolean, boolean, boolean)}) ;</li>
+ * <li>jointure par hachage, quand la table a plus de lignes que le pattern
+ * n'a de triples : le pattern est lu une fois, haché sur les variables qu'il
+ * partage avec la table, puis chaque ligne y est cherchée.</li>
+ * </ul>
+ * <p>
+ * Les lignes sont enfin projetées sur les variables du {@code SELECT} (avec
+ * élimination des doublons pour {@code DISTINCT}). Sans {@code DISTINCT}, la
+ * dernière jointure s'arrête dès qu'il y a assez de lignes pour le
+ * {@code LIMIT}.
+ * </p>
+ */
+public final class JoinEvaluator {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private JoinEvaluator() {
+    }
+
+    /**
+     * Reçoit les triples (sujet, prédicat, objet) lus dans un index ; renvoie
+     * faux pour arrêter la lecture.
+     */
+    private interface TripleSink {
+        boolean accept(int subject, int predicate, int object);
+    }
+
+    // Table de liaisons : width identifiants par ligne, à la suite
+    private static final class Rows {
+        final int width;
+        int[] values;
+        int count = 0;
+
+        Rows(int width, int capacity) {
+            this.width = width;
+            this.values = new int[width * Math.max(1, capacity)];
+        }
+
+        // Ajoute une ligne (non initialisée) et renvoie sa position dans values
+        int add() {
+            int offset = count * width;
+            if (offset + width > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, offset + width));
+            }
+            count++;
+            return offset;
+        }
+    }
+
+    /**
+     * Évalue le plan et renvoie les lignes projetées, à la suite
+     * ({@code plan.getProjection().length} identifiants par ligne). On s'arrête
+     * à {@code requiredRows} lignes. Si les tableaux {@code joins} et
+     * {@code intermediateSizes} sont fournis, on y note la jointure choisie et
+     * le nombre de lignes après chaque étape.
+     */
+    public static int[] evaluate(JoinPlan plan, MainRDFHandler rdfHandler, int requiredRows, String[] joins,
+                                 int[] intermediateSizes, QueryMetrics metrics) {
+        List<JoinPlan.Pattern> patterns = plan.getPatterns();
+        if (intermediateSizes != null) {
+            Arrays.fill(joins, null);
+            Arrays.fill(intermediateSizes, -1);
+        }
+        if (patterns.isEmpty() || plan.getMissingTermCount() > 0) {
+            return Intersection.EMPTY;
+        }
+
+        int variableCount = plan.getVariables().size();
+        boolean[] bound = new boolean[variableCount];
+        Store[] stores = new Store[Permutation.values().length];
+        Rows rows = new Rows(variableCount, 1);
+        rows.add();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            JoinPlan.Pattern pattern = patterns.get(i);
+            long begin = System.nanoTime();
+            // Sans DISTINCT, chaque ligne de la dernière étape donne une solution
+            int limit = i == patterns.size() - 1 && !plan.isDistinct() ? requiredRows : Integer.MAX_VALUE;
+
+            int[] shared = sharedVariables(pattern, bound);
+            boolean hash = i > 0 && shared.length < 3 && rows.count > pattern.estimate();
+            rows = hash
+                    ? hashJoin(rows, pattern, shared, rdfHandler, stores, limit)
+                    : indexJoin(rows, pattern, bound, rdfHandler, stores, limit);
+
+            for (int position = 0; position < 3; position++) {
+                if (JoinPlan.Pattern.isVariable(pattern.term(position))) {
+                    bound[JoinPlan.Pattern.variableOf(pattern.term(position))] = true;
+                }
+            }
+
+            if (metrics != null) {
+                metrics.record(QueryMetrics.Stage.INTERSECTION, patterns.size(), System.nanoTime() - begin);
+            }
+            if (intermediateSizes != null) {
+                joins[i] = i == 0 ? "scan" : hash ? "hash" : "index";
+                intermediateSizes[i] = rows.count;
+            }
+            if (rows.count == 0) {
+                return Intersection.EMPTY;
+            }
+        }
+
+        return project(rows, plan.getProjection(), plan.isDistinct(), requiredRows);
+    }
+
+    // Pour chaque ligne, le pattern est cherché avec les valeurs de ses variables déjà liées
+    private static Rows indexJoin(Rows rows, JoinPlan.Pattern pattern, boolean[] bound, MainRDFHandler rdfHandler,
+                                  Store[] stores, int limit) {
+        Rows result = new Rows(rows.width, rows.count);
+        int[] key = new int[3];
+        // Une clé qui dépend de la ligne n'est lue qu'une fois : elle n'a rien à faire dans le cache
+        boolean probe = sharedVariables(pattern, bound).length > 0;
+
+        for (int row = 0; row < rows.count && result.count < limit; row++) {
+            int rowOffset = row * rows.width;
+            for (int position = 0; position < 3; position++) {
+                int term = pattern.term(position);
+                if (!JoinPlan.Pattern.isVariable(term)) {
+                    key[position] = term;
+                } else {
+                    int variable = JoinPlan.Pattern.variableOf(term);
+                    key[position] = bound[variable] ? rows.values[rowOffset + variable] : 0;
+                }
+            }
+
+            scan(key, rdfHandler, stores, probe, (subject, predicate, object) -> {
+                extend(result, rows, rowOffset, pattern, subject, predicate, object);
+                return result.count < limit;
+            });
+        }
+        return result;
+    }
+
+    // Le pattern est lu une fois et haché sur les variables partagées avec la table
+    private static Rows hashJoin(Rows rows, JoinPlan.Pattern pattern, int[] shared, MainRDFHandler rdfHandler,
+                                 Store[] stores, int limit) {
+        int[] key = new int[3];
+        for (int position = 0; position < 3; position++) {
+            int term = pattern.term(position);
+            key[position] = JoinPlan.Pattern.isVariable(term) ? 0 : term;
+        }
+
+        // Triples du pattern, une ligne (sujet, prédicat, objet) par triple
+        Rows matches = new Rows(3, INITIAL_CAPACITY);
+        scan(key, rdfHandler, stores, false, (subject, predicate, object) -> {
+            if (consistent(pattern, subject, predicate, object)) {
+                int offset = matches.add();
+                matches.values[offset] = subject;
+                matches.values[offset + 1] = predicate;
+                matches.values[offset + 2] = object;
+            }
+            return true;
+        });
+        int[] triples = matches.values;
+        int count = matches.count;
+
+        // Position, dans le pattern, de chaque variable partagée
+        int[] positions = new int[shared.length];
+        for (int i = 0; i < shared.length; i++) {
+            for (int position = 0; position < 3; position++) {
+                if (pattern.term(position) == -shared[i] - 1) {
+                    positions[i] = position;
+                }
+            }
+        }
+
+        // Table de hachage à adressage ouvert : clé de jointure -> chaîne de triples
+        int bits = Math.max(4, 33 - Integer.numberOfLeadingZeros(Math.max(1, count)));
+        int mask = (1 << bits) - 1;
+        long[] slotKeys = new long[mask + 1];
+        int[] heads = new int[mask + 1];
+        Arrays.fill(heads, -1);
+        int[] next = new int[count];
+        for (int match = 0; match < count; match++) {
+            long joinKey = 0;
+            for (int position : positions) {
+                joinKey = (joinKey << 32) | (triples[3 * match + position] & 0xFFFFFFFFL);
+            }
+            int slot = slotOf(joinKey, bits);
+            while (heads[slot] >= 0 && slotKeys[slot] != joinKey) {
+                slot = (slot + 1) & mask;
+            }
+            slotKeys[slot] = joinKey;
+            next[match] = heads[slot];
+            heads[slot] = match;
+        }
+
+        Rows result = new Rows(rows.width, rows.count);
+        for (int row = 0; row < rows.count && result.count < limit; row++) {
+            int rowOffset = row * rows.width;
+            long joinKey = 0;
+            for (int variable : shared) {
+                joinKey = (joinKey << 32) | (rows.values[rowOffset + variable] & 0xFFFFFFFFL);
+            }
+            int slot = slotOf(joinKey, bits);
+            while (heads[slot] >= 0 && slotKeys[slot] != joinKey) {
+                slot = (slot + 1) & mask;
+            }
+            for (int match = heads[slot]; match >= 0 && result.count < limit; match = next[match]) {
+                extend(result, rows, rowOffset, pattern, triples[3 * match], triples[3 * match + 1], triples[3 * match + 2]);
+            }
+        }
+        return result;
+    }
+
+    private static int slotOf(long joinKey, int bits) {
+        return (int) ((joinKey * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    /**
+     * Lit les triples correspondant à {@code key} (sujet, prédicat, objet ; 0
+     * pour une position libre) dans l'index adapté : ceux des index principaux
+     * qui n'ont pas été supprimés, puis ceux ajoutés par le delta. Une
+     * {@code probe} (clé tirée d'une ligne de la table) ne passe pas par le
+     * cache des listes.
+     */
+    private static void scan(int[] key, MainRDFHandler rdfHandler, Store[] stores, boolean probe, TripleSink sink) {
+        boolean subjectBound = key[0] != 0;
+        boolean predicateBound = key[1] != 0;
+        boolean objectBound = key[2] != 0;
+
+        if (!subjectBound && predicateBound && objectBound) {
+            // Pattern (?s, prédicat, objet) : liste de l'index POS, delta compris
+            PostingList list = probe
+                    ? rdfHandler.getUncachedPostingList(key[1], key[2])
+                    : rdfHandler.getPostingList(key[1], key[2]);
+            PostingList.Cursor cursor = list.cursor();
+            for (int subject = cursor.current(); subject != PostingList.Cursor.END; subject = cursor.advance()) {
+                if (!sink.accept(subject, key[1], key[2])) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        Permutation permutation = Permutation.forPattern(subjectBound, predicateBound, objectBound);
+        Store store = stores[permutation.ordinal()];
+        if (store == null) {
+            store = rdfHandler.getStore(permutation);
+            stores[permutation.ordinal()] = store;
+        }
+
+        Delta delta = rdfHandler.getDelta();
+        if (delta.isEmpty()) {
+            scan(key, store, permutation, sink);
+            return;
+        }
+        boolean complete = scan(key, store, permutation, (subject, predicate, object) ->
+                delta.isDeleted(subject, predicate, object) || sink.accept(subject, predicate, object));
+        if (complete) {
+            scan(key, delta.getAddedStore(permutation), permutation, sink);
+        }
+    }
+
+    // Lecture dans un seul index ; renvoie faux si le sink a arrêté la lecture
+    private static boolean scan(int[] key, Store store, Permutation permutation, TripleSink sink) {
+        int first = key[permutation.getFirst()];
+        int second = key[permutation.getSecond()];
+        int third = key[permutation.getThird()];
+
+        int firstFrom = 0;
+        int firstTo = store.distinctFirstCount();
+        if (first != 0) {
+            firstFrom = store.indexOfFirst(first);
+            if (firstFrom < 0) {
+                return true;
+            }
+            firstTo = firstFrom + 1;
+        }
+
+        int[] triple = new int[3];
+        for (int firstIndex = firstFrom; firstIndex < firstTo; firstIndex++) {
+            triple[permutation.getFirst()] = store.firstKeyAt(firstIndex);
+
+            int secondFrom = store.secondsFrom(firstIndex);
+            int secondTo = store.secondsTo(firstIndex);
+            if (second != 0) {
+                secondFrom = store.secondIndexOf(firstIndex, second);
+                if (secondFrom < 0) {
+                    continue;
+                }
+                secondTo = secondFrom + 1;
+            }
+
+            for (int secondIndex = secondFrom; secondIndex < secondTo; secondIndex++) {
+                triple[permutation.getSecond()] = store.secondKeyAt(secondIndex);
+                PostingList list = store.listAt(secondIndex);
+                if (third != 0) {
+                    if (list.containsInt(third)) {
+                        triple[permutation.getThird()] = third;
+                        if (!sink.accept(triple[0], triple[1], triple[2])) {
+                            return false;
+                        }
+                    }
+                    continue;
+                }
+
+                PostingList.Cursor cursor = list.cursor();
+                for (int value = cursor.current(); value != PostingList.Cursor.END; value = cursor.advance()) {
+                    triple[permutation.getThird()] = value;
+                    if (!sink.accept(triple[0], triple[1], triple[2])) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // Ajoute à result la ligne de rows prolongée par le triple, s'il est compatible avec le pattern
+    private static void extend(Rows result, Rows rows, int rowOffset, JoinPlan.Pattern pattern,
+                               int subject, int predicate, int object) {
+        if (!consistent(pattern, subject, predicate, object)) {
+            return;
+        }
+        int offset = result.add();
+        System.arraycopy(rows.values, rowOffset, result.values, offset, rows.width);
+        if (JoinPlan.Pattern.isVariable(pattern.subject())) {
+            result.values[offset + JoinPlan.Pattern.variableOf(pattern.subject())] = subject;
+        }
+        if (JoinPlan.Pattern.isVariable(pattern.predicate())) {
+            result.values[offset + JoinPlan.Pattern.variableOf(pattern.predicate())] = predicate;
+        }
+        if (JoinPlan.Pattern.isVariable(pattern.object())) {
+            result.values[offset + JoinPlan.Pattern.variableOf(pattern.object())] = object;
+        }
+    }
+
+    // Une variable répétée dans le pattern (?x p ?x) doit avoir la même valeur partout
+    private static boolean consistent(JoinPlan.Pattern pattern, int subject, int predicate, int object) {
+        int s = pattern.subject();
+        int p = pattern.predicate();
+        int o = pattern.object();
+        return !(JoinPlan.Pattern.isVariable(s) && s == p && subject != predicate)
+                && !(JoinPlan.Pattern.isVariable(s) && s == o && subject != object)
+                && !(JoinPlan.Pattern.isVariable(p) && p == o && predicate != object);
+    }
+
+    // Variables du pattern déjà liées, sans doublons
+    private static int[] sharedVariables(JoinPlan.Pattern pattern, boolean[] bound) {
+        return IntStream.of(pattern.subject(), pattern.predicate(), pattern.object())
+                .filter(JoinPlan.Pattern::isVariable)
+                .map(JoinPlan.Pattern::variableOf)
+                .filter(variable -> bound[variable])
+                .distinct()
+                .toArray();
+    }
+
+    private static int[] project(Rows rows, int[] projection, boolean distinct, int requiredRows) {
+        int width = projection.length;
+        int count = distinct ? rows.count : Math.min(rows.count, requiredRows);
+        int[] projected = new int[count * width];
+        for (int row = 0; row < count; row++) {
+            for (int column = 0; column < width; column++) {
+                projected[row * width + column] = rows.values[row * rows.width + projection[column]];
+            }
+        }
+        if (!distinct || width == 0) {
+            return projected;
+        }
+
+        // Tri des lignes, puis élimination des doublons
+        Integer[] order = new Integer[count];
+        for (int row = 0; row < count; row++) {
+            order[row] = row;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compare(
+                projected, a * width, a * width + width, projected, b * width, b * width + width));
+
+        int[] unique = new int[projected.length];
+        int uniqueCount = 0;
+        for (int i = 0; i < count && uniqueCount < requiredRows; i++) {
+            int from = order[i] * width;
+            if (uniqueCount > 0 && Arrays.equals(projected, from, from + width, unique, (uniqueCount - 1) * width, uniqueCount * width)) {
+                continue;
+            }
+            System.arraycopy(projected, from, unique, uniqueCount * width, width);
+            uniqueCount++;
+        }
+        return Arrays.copyOf(unique, uniqueCount * width);
+    }
+}
@@ -0,0 +1,231 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plan d'un motif de graphe quelconque (BGP) : patterns avec des variables à
+ * n'importe quelle position, plusieurs variables projetées. Il sert aux
+ * requêtes qui ne sont pas de simples étoiles (chemins, flocons…), évaluées par
+ * {@link JoinEvaluator}.
+ *
+ * <p>
+ * Les termes constants sont encodés avec le dictionnaire ; une variable est
+ * représentée par {@code -(n + 1)}, où {@code n} est son numéro. Les patterns
+ * sont rangés dans l'ordre des jointures : d'abord le plus sélectif, puis, à
+ * chaque étape, le plus sélectif de ceux qui partagent une variable déjà liée
+ * (un produit cartésien n'est fait qu'en dernier recours).
+ * </p>
+ */
+public class JoinPlan {
+
+    /**
+     * Un pattern encodé, avec sa cardinalité estimée (ses seules constantes
+     * prises en compte).
+     */
+    public record Pattern(String label, int subject, int predicate, int object, int estimate) {
+        /**
+         * Terme à la position {@code position} (0 sujet, 1 prédicat, 2 objet).
+         */
+        public int term(int position) {
+            return switch (position) {
+                case 0 -> subject;
+                case 1 -> predicate;
+                default -> object;
+            };
+        }
+
+        public static boolean isVariable(int term) {
+            return term < 0;
+        }
+
+        public static int variableOf(int term) {
+            return -term - 1;
+        }
+    }
+
+    private final List<Pattern> patterns;
+    private final List<String> variables;
+    private final int[] projection;
+    private final boolean distinct;
+    private final int missingTerms;
+
+    private JoinPlan(List<Pattern> patterns, List<String> variables, int[] projection, boolean distinct, int missingTerms) {
+        this.patterns = patterns;
+        this.variables = variables;
+        this.projection = projection;
+        this.distinct = distinct;
+        this.missingTerms = missingTerms;
+    }
+
+    /**
+     * @param projected noms des variables projetées, dans l'ordre du
+     *                  {@code SELECT} ; toutes les variables si la liste est
+     *                  vide
+     */
+    public static JoinPlan of(List<StatementPattern> statementPatterns, List<String> projected, boolean distinct,
+                              MainRDFHandler rdfHandler) {
+        List<String> variables = new ArrayList<>();
+        List<Pattern> patterns = new ArrayList<>(statementPatterns.size());
+        int missingTerms = 0;
+
+        for (StatementPattern statementPattern : statementPatterns) {
+            Var[] vars = {statementPattern.getSubjectVar(), statementPattern.getPredicateVar(), statementPattern.getObjectVar()};
+            int[] terms = new int[3];
+            StringBuilder label = new StringBuilder();
+            for (int position = 0; position < 3; position++) {
+                Var var = vars[position];
+                if (var.hasValue()) {
+                    String value = var.getValue().stringValue();
+                    // Simple consultation : une constante inconnue rend la requête vide
+                    terms[position] = rdfHandler.getDictionary().lookup(value);
+                    if (terms[position] == TermDictionary.ABSENT) {
+                        // 0 n'est l'identifiant d'aucun terme
+                        terms[position] = 0;
+                        missingTerms++;
+                    }
+                    label.append('<').append(value).append('>');
+                } else {
+                    int variable = variables.indexOf(var.getName());
+                    if (variable < 0) {
+                        variable = variables.size();
+                        variables.add(var.getName());
+                    }
+                    terms[position] = -variable - 1;
+                    label.append('?').append(var.getName());
+                }
+                label.append(position < 2 ? " " : "");
+            }
+
+            int estimate = missingTerms > 0 ? 0 : estimate(terms, rdfHandler);
+            patterns.add(new Pattern(label.toString(), terms[0], terms[1], terms[2], estimate));
+        }
+
+        int[] projection;
+        if (projected.isEmpty()) {
+            projection = new int[variables.size()];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = i;
+            }
+        } else {
+            projection = new int[projected.size()];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = variables.indexOf(projected.get(i));
+                if (projection[i] < 0) {
+                    throw new IllegalArgumentException("Projected variable ?" + projected.get(i) + " is not bound by the query");
+                }
+            }
+        }
+
+        return new JoinPlan(order(patterns, variables.size()), variables, projection, distinct, missingTerms);
+    }
+
+    // Nombre de triples correspondant aux constantes du pattern
+    private static int estimate(int[] terms, MainRDFHandler rdfHandler) {
+        boolean subjectBound = !Pattern.isVariable(terms[0]);
+        boolean predicateBound = !Pattern.isVariable(terms[1]);
+        boolean objectBound = !Pattern.isVariable(terms[2]);
+
+        if (!subjectBound && !objectBound) {
+            return predicateBound ? rdfHandler.getStatistics().getPredicateCount(terms[1]) : rdfHandler.getTriplets();
+        }
+        if (!subjectBound && predicateBound) {
+            return rdfHandler.getStatistics().getPatternCount(terms[1], terms[2]);
+        }
+
+        Permutation permutation = Permutation.forPattern(subjectBound, predicateBound, objectBound);
+        Store store = rdfHandler.getStore(permutation);
+        int first = terms[permutation.getFirst()];
+        int second = terms[permutation.getSecond()];
+        if (Pattern.isVariable(second)) {
+            return store.count(first);
+        }
+        int count = store.count(first, second);
+        if (count > 0 && !Pattern.isVariable(terms[permutation.getThird()])) {
+            // Triple entièrement connu : présent ou non
+            return store.twoValuesFilter(first, second).containsInt(terms[permutation.getThird()]) ? 1 : 0;
+        }
+        return count;
+    }
+
+    // Ordre glouton des jointures
+    private static List<Pattern> order(List<Pattern> patterns, int variableCount) {
+        List<Pattern> remaining = new ArrayList<>(patterns);
+        List<Pattern> ordered = new ArrayList<>(patterns.size());
+        boolean[] bound = new boolean[variableCount];
+
+        while (!remaining.isEmpty()) {
+            Pattern best = null;
+            boolean bestConnected = false;
+            for (Pattern pattern : remaining) {
+                boolean connected = shares(pattern, bound);
+                if (best == null || (connected && !bestConnected)
+                        || (connected == bestConnected && pattern.estimate() < best.estimate())) {
+                    best = pattern;
+                    bestConnected = connected;
+                }
+            }
+
+            remaining.remove(best);
+            ordered.add(best);
+            for (int position = 0; position < 3; position++) {
+                if (Pattern.isVariable(best.term(position))) {
+                    bound[Pattern.variableOf(best.term(position))] = true;
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private static boolean shares(Pattern pattern, boolean[] bound) {
+        for (int position = 0; position < 3; position++) {
+            int term = pattern.term(position);
+            if (Pattern.isVariable(term) && bound[Pattern.variableOf(term)]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Numéros des variables projetées, dans l'ordre du {@code SELECT}.
+     */
+    public int[] getProjection() {
+        return projection;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    public int getMissingTermCount() {
+        return missingTerms;
+    }
+
+    /**
+     * Décrit l'ordre des jointures avec, pour chaque étape, la cardinalité
+     * estimée du pattern, la jointure choisie et le nombre de lignes obtenues
+     * (-1 pour les étapes non évaluées).
+     */
+    public String explain(String[] joins, int[] actualIntermediateSizes) {
+        StringBuilder explanation = new StringBuilder();
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern pattern = patterns.get(i);
+            explanation.append(String.format("  %d. %s pattern est=%d | %s join, rows act=%s%n",
+                    i + 1, pattern.label(), pattern.estimate(), joins[i] == null ? "no" : joins[i],
+                    actualIntermediateSizes[i] < 0 ? "skipped" : Integer.toString(actualIntermediateSizes[i])));
+        }
+        return explanation.toString();
+    }
+}
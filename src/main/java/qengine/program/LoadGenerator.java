@@ -0,0 +1,141 @@
+package qengine.program;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client de charge pour le {@link QueryServer} : {@code clients} threads
+ * virtuels envoient en boucle fermée (une requête à la fois chacun) les
+ * requêtes d'un fichier, dans l'ordre et en recommençant au début si besoin,
+ * jusqu'à un nombre de requêtes ou une durée donnés.
+ *
+ * <p>
+ * À la fin sont affichés le débit, le nombre de réponses par code HTTP, et les
+ * centiles de latence des réponses réussies : temps jusqu'aux en-têtes et temps
+ * total, corps lu en entier.
+ * </p>
+ */
+final class LoadGenerator {
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("url", true, "Query endpoint (default http://127.0.0.1:8080/sparql)");
+        options.addOption("queries", true, "Path to the queries file sent to the server");
+        options.addOption("clients", true, "Number of concurrent closed-loop clients (default 16)");
+        options.addOption("requests", true, "Total number of requests (default: one pass over the queries file)");
+        options.addOption("duration", true, "Run for this many seconds instead of a fixed number of requests");
+
+        CommandLineParser cliParser = new DefaultParser();
+        CommandLine commands;
+        try {
+            commands = cliParser.parse(options, args);
+        } catch (ParseException exception) {
+            System.err.println("Error: Could not parse arguments properly: " + exception.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        URI endpoint = URI.create(commands.getOptionValue("url", "http://127.0.0.1:8080/sparql"));
+        List<String> queries = Engine.getListFromFile(commands.getOptionValue("queries", "data/sample_query.queryset"));
+        int clients = Integer.parseInt(commands.getOptionValue("clients", "16"));
+        long requests = Long.parseLong(commands.getOptionValue("requests", Integer.toString(queries.size())));
+        long durationSeconds = Long.parseLong(commands.getOptionValue("duration", "0"));
+        run(endpoint, queries, clients, requests, durationSeconds);
+    }
+
+    /**
+     * Envoie {@code requests} requêtes, ou pendant {@code durationSeconds}
+     * secondes si ce n'est pas 0, puis affiche le rapport.
+     */
+    static void run(URI endpoint, List<String> queries, int clients, long requests, long durationSeconds) {
+        boolean timed = durationSeconds > 0;
+        long deadline = timed ? System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        LatencyHistogram firstByte = new LatencyHistogram();
+        LatencyHistogram total = new LatencyHistogram();
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        LongAdder errors = new LongAdder();
+        AtomicLong next = new AtomicLong();
+
+        long begin = System.nanoTime();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                pool.submit(() -> {
+                    while (true) {
+                        long index = next.getAndIncrement();
+                        if (timed ? System.nanoTime() >= deadline : index >= requests) {
+                            return;
+                        }
+                        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                                .header("Content-Type", "application/sparql-query")
+                                .POST(HttpRequest.BodyPublishers.ofString(queries.get((int) (index % queries.size()))))
+                                .build();
+                        try {
+                            long sent = System.nanoTime();
+                            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                            long headers = System.nanoTime();
+                            try (InputStream body = response.body()) {
+                                body.transferTo(OutputStream.nullOutputStream());
+                            }
+                            statuses.computeIfAbsent(response.statusCode(), status -> new LongAdder()).increment();
+                            if (response.statusCode() == 200) {
+                                firstByte.record(headers - sent);
+                                total.record(System.nanoTime() - sent);
+                            }
+                        } catch (IOException exception) {
+                            errors.increment();
+                        } catch (InterruptedException exception) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long responses = statuses.values().stream().mapToLong(LongAdder::sum).sum();
+        System.out.printf(Locale.ROOT, "%d responses from %d clients in %.1fs: %.1f req/s (%d connection errors)%n",
+                responses, clients, elapsed / 1e9, responses * 1e9 / elapsed, errors.sum());
+        Map<Integer, Long> counts = new TreeMap<>();
+        statuses.forEach((status, count) -> counts.put(status, count.sum()));
+        System.out.println("Status codes: " + counts);
+        print("Headers", firstByte);
+        print("Total", total);
+    }
+
+    private static void print(String label, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-8s p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n", label,
+                histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6);
+    }
+}
@@ -41,6 +41,9 @@ final class Main {
         boolean compareToJena;
         boolean shuffle;
         int warmupDataAmount = 0;
+        String additionsFile = null;
+        String deletionsFile = null;
+        CommandLine serverCommands = null;
 
         Options options = getOptions();
 
@@ -59,6 +62,37 @@ final class Main {
 
             }
             queryHandlerEngine = new Engine(null, "./data/", queryFile, dataFile, shuffle, compareToJena, warmupDataAmount);
+            queryHandlerEngine.setExplain(commands.hasOption("explain"));
+            queryHandlerEngine.setCompressLeaves(!commands.hasOption("uncompressed"));
+            queryHandlerEngine.setSnapshotFile(commands.getOptionValue("snapshot"));
+            queryHandlerEngine.setIndexes(commands.getOptionValue("indexes", "all"));
+            if (commands.hasOption("plancache")) {
+                queryHandlerEngine.setPlanCacheSize(Integer.parseInt(commands.getOptionValue("plancache")));
+            }
+            if (commands.hasOption("resultcache")) {
+                queryHandlerEngine.setResultCacheBudget(Long.parseLong(commands.getOptionValue("resultcache")) << 20);
+            }
+            if (commands.hasOption("patterncache")) {
+                queryHandlerEngine.setPostingListCacheBudget(Long.parseLong(commands.getOptionValue("patterncache")) << 20);
+            }
+            queryHandlerEngine.setResultsDirectory(commands.getOptionValue("results", "."));
+            queryHandlerEngine.setResultFormat(ResultWriter.Format.parse(commands.getOptionValue("format", "csv")));
+            if (commands.hasOption("loaders")) {
+                queryHandlerEngine.setLoaderThreads(Integer.parseInt(commands.getOptionValue("loaders")));
+            }
+            queryHandlerEngine.setFastParser(!commands.hasOption("rio"));
+            queryHandlerEngine.setBatch(commands.hasOption("batch"));
+            if (commands.hasOption("shards")) {
+                queryHandlerEngine.setShardCount(Integer.parseInt(commands.getOptionValue("shards")));
+            }
+            if (commands.hasOption("serve")) {
+                serverCommands = commands;
+            }
+            additionsFile = commands.getOptionValue("add");
+            deletionsFile = commands.getOptionValue("delete");
+            if (commands.hasOption("mergethreshold")) {
+                queryHandlerEngine.setMergeThreshold(Integer.parseInt(commands.getOptionValue("mergethreshold")));
+            }
 
         } catch (ParseException exception) {
             System.err.println("Error: Could not parse arguments properly: " + exception.getMessage());
@@ -71,9 +105,32 @@ final class Main {
         queryHandlerEngine.parseData();
         dataParsingTime = System.currentTimeMillis() - begin;
 
+        if (additionsFile != null || deletionsFile != null) {
+            queryHandlerEngine.applyUpdate(additionsFile, deletionsFile);
+        }
+
+        if (serverCommands != null) {
+            serve(queryHandlerEngine, serverCommands);
+            return;
+        }
+
         queryHandlerEngine.parseQueries();
     }
 
+    // Les index restent chargés : le serveur répond jusqu'à l'arrêt du programme
+    private static void serve(Engine engine, CommandLine commands) throws Exception {
+        QueryServer server = new QueryServer(engine,
+                Integer.parseInt(commands.getOptionValue("serve")),
+                Integer.parseInt(commands.getOptionValue("concurrency",
+                        Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(commands.getOptionValue("queue", "256")),
+                Long.parseLong(commands.getOptionValue("timeout", "10000")));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+        System.out.println("Serving queries on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/sparql (updates: POST /update?delete=<file>&add=<file>)");
+    }
+
     @NotNull
     private static Options getOptions() {
         Options options = new Options();
@@ -84,6 +141,26 @@ final class Main {
         options.addOption("Jena", false, "Sets Jena as an oracle for query testing purposes against qengine");
         options.addOption("warm", true, "Sets a warming up round for queries using an int as a percentage of queries to use");
         options.addOption("shuffle", false, "Should the entry data be shuffled");
+        options.addOption("loaders", true, "Number of threads parsing the dataset in parallel (bulk load); 1 uses the single-threaded parser");
+        options.addOption("shards", true, "Number of subject-hash partitions of the POS index evaluated in parallel for star queries (default 1, no partitioning)");
+        options.addOption("rio", false, "Parses the dataset with Rio only instead of the memory-mapped N-Triples fast path");
+        options.addOption("add", true, "Path to an N-Triples file of triples added after loading, applied as a delta over the main indexes");
+        options.addOption("delete", true, "Path to an N-Triples file of triples deleted after loading (applied before -add)");
+        options.addOption("mergethreshold", true, "Delta size, in triples, that triggers a background merge into the main indexes (default 65536)");
+        options.addOption("indexes", true, "Index permutations built at load time: all (default), auto (those the query file needs) or a list such as POS,PSO; the others are built on demand");
+        options.addOption("snapshot", true, "Path to a binary index snapshot: memory-mapped at startup if it exists, written after loading the data otherwise");
+        options.addOption("plancache", true, "Number of compiled query plans kept in the LRU plan cache (default 1024, 0 disables it)");
+        options.addOption("resultcache", true, "Memory budget in MB of the query result cache (disabled by default)");
+        options.addOption("patterncache", true, "Memory budget in MB of the shared cache of decoded compressed posting lists (disabled by default)");
+        options.addOption("uncompressed", false, "Keeps the POS and PSO posting lists as plain arrays instead of compressed blocks");
+        options.addOption("results", true, "Directory where query results are written (default: current directory)");
+        options.addOption("format", true, "Query results format: csv (default), gzip (compressed CSV) or binary");
+        options.addOption("serve", true, "Keeps the indexes loaded and serves SPARQL queries on this localhost HTTP port instead of running the queries file");
+        options.addOption("concurrency", true, "Server mode: maximum number of queries evaluated at the same time (default: number of cores)");
+        options.addOption("queue", true, "Server mode: maximum number of queries waiting for evaluation before new ones are rejected with 503 (default 256)");
+        options.addOption("timeout", true, "Server mode: per-query timeout in milliseconds, queueing included (default 10000)");
+        options.addOption("batch", false, "Also evaluates the queries file as one batch sharing posting lists and pattern-prefix intersections, checks its results and reports the workload time of both modes");
+        options.addOption("explain", false, "Prints the chosen pattern order with estimated and actual cardinalities for each query");
         return options;
     }
 
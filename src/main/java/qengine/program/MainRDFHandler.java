@@ -4,6 +4,14 @@ import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Le RDFHandler intervient lors du parsing de données et permet d'appliquer un
  * traitement pour chaque élément lu par le parseur.
@@ -14,69 +22,439 @@ import org.jetbrains.annotations.NotNull;
  * lu.
  * </p>
  * <p>
- * À adapter/réécrire selon vos traitements.
+ * Seules les permutations choisies avec {@link #setMaterialized(Set)} sont
+ * construites à la fin du chargement. Les autres sont construites en tâche de
+ * fond, à partir d'un index déjà construit, la première fois que
+ * {@link #getStore(Permutation)} les demande.
+ * </p>
+ * <p>
+ * Une fois chargé, un handler n'est plus modifié. Une mise à jour des données
+ * donne une nouvelle version ({@link #withDelta(Delta)}) qui partage les index
+ * principaux et leur ajoute un {@link Delta} : une requête qui garde sa version
+ * du début à la fin lit des données cohérentes, sans verrou.
  * </p>
  */
 public final class MainRDFHandler extends AbstractRDFHandler {
-    private final Dictionary<String> dictionary = new Dictionary<String>();
-    private final Store spoStore = new Store();
-    private final Store sopStore = new Store();
-    private final Store opsStore = new Store();
-    private final Store ospStore = new Store();
-    private final Store psoStore = new Store();
-    private final Store posStore = new Store();
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final TermDictionary dictionary;
+    // Un index par permutation, dans l'ordre de Permutation
+    private final Store[] stores;
+    // Partagé par toutes les versions tirées des mêmes index
+    private final Map<Permutation, CompletableFuture<Store>> lazyBuilds;
+    private final long version = VERSIONS.incrementAndGet();
+    private Delta delta = Delta.EMPTY;
+    private Set<Permutation> materialized = EnumSet.allOf(Permutation.class);
+    // Triples encodés en attente de la construction des index
+    private TripleBuffer triples = new TripleBuffer();
     private int triplets = 0;
+    private long indexesCreationTime = 0;
+    private volatile Statistics statistics = null;
+    private volatile PostingListCache postingListCache = null;
+    private boolean compressLeaves = true;
+    private int shardCount = 1;
+    // Null sans partitionnement
+    private volatile Shards shards = null;
+    // Pool des évaluations par partition, créé au premier partitionnement s'il n'est pas fourni
+    private ForkJoinPool shardPool = null;
+
+    public MainRDFHandler() {
+        this(new TermDictionary());
+    }
+
+    /**
+     * Handler vide qui encode ses termes avec un dictionnaire existant.
+     */
+    MainRDFHandler(TermDictionary dictionary) {
+        this(dictionary, new Store[]{new Store(), new Store(), new Store(), new Store(), new Store(), new Store()}, 0);
+    }
+
+    /**
+     * Handler déjà chargé, par exemple depuis un {@link Snapshot} ; les index
+     * sont donnés dans l'ordre de {@link Permutation}.
+     */
+    MainRDFHandler(TermDictionary dictionary, Store[] stores, int triplets) {
+        this.dictionary = dictionary;
+        this.stores = stores;
+        this.triplets = triplets;
+        this.lazyBuilds = new ConcurrentHashMap<>();
+
+        Set<Permutation> built = EnumSet.noneOf(Permutation.class);
+        for (Permutation permutation : Permutation.values()) {
+            if (stores[permutation.ordinal()].isBuilt()) {
+                built.add(permutation);
+            }
+        }
+        if (!built.isEmpty()) {
+            materialized = built;
+            triples = null;
+        }
+    }
+
+    // Nouvelle version des mêmes index principaux
+    private MainRDFHandler(MainRDFHandler base, Delta delta) {
+        this.dictionary = base.dictionary;
+        this.stores = base.stores;
+        this.lazyBuilds = base.lazyBuilds;
+        this.materialized = base.materialized;
+        this.triples = null;
+        this.triplets = base.triplets;
+        this.indexesCreationTime = base.indexesCreationTime;
+        this.statistics = base.statistics;
+        this.compressLeaves = base.compressLeaves;
+        this.shardCount = base.shardCount;
+        this.shards = base.shards;
+        this.shardPool = base.shardPool;
+        this.delta = delta;
+    }
+
+    /**
+     * Nouvelle version de ces données : les mêmes index principaux, avec
+     * {@code delta} (qui remplace celui de cette version) par-dessus. Son cache
+     * de listes est vide ; il est activé par
+     * {@link #setPostingListCacheBudget(long)}.
+     */
+    public MainRDFHandler withDelta(Delta delta) {
+        return new MainRDFHandler(this, delta);
+    }
+
+    /**
+     * Reconstruit des index principaux avec toutes les données de cette version
+     * (ses index principaux et son delta), sans delta. Le dictionnaire est
+     * partagé ; cette version reste utilisable pendant la reconstruction.
+     */
+    public MainRDFHandler merge() {
+        Permutation source = materialized.iterator().next();
+        Store sourceStore = stores[source.ordinal()];
+        TripleBuffer sourceTriples = new TripleBuffer(sourceStore.size());
+        sourceStore.appendTriples(sourceTriples, source);
+
+        TripleBuffer merged = new TripleBuffer(getTriplets());
+        int[] data = sourceTriples.array();
+        for (int i = 0; i < sourceTriples.size(); i++) {
+            int position = 3 * i;
+            if (!delta.isDeleted(data[position], data[position + 1], data[position + 2])) {
+                merged.add(data[position], data[position + 1], data[position + 2]);
+            }
+        }
+        delta.appendAdded(merged);
+
+        MainRDFHandler handler = new MainRDFHandler(dictionary);
+        handler.setMaterialized(materialized);
+        handler.setCompressLeaves(compressLeaves);
+        handler.setShardCount(shards == null ? 1 : shards.size());
+        handler.setShardPool(shardPool);
+        handler.addTriples(merged);
+        handler.endRDF();
+        return handler;
+    }
+
+    /**
+     * Choisit les permutations construites à la fin du chargement. Au moins une
+     * doit l'être, pour pouvoir construire les autres à la demande ; POS est
+     * retenue si l'ensemble est vide.
+     */
+    public void setMaterialized(Set<Permutation> permutations) {
+        materialized = permutations.isEmpty() ? EnumSet.of(Permutation.POS) : EnumSet.copyOf(permutations);
+    }
+
+    /**
+     * Si vrai (par défaut), le dernier niveau des index POS et PSO, ceux des
+     * requêtes en étoile, est compressé après leur construction.
+     */
+    public void setCompressLeaves(boolean compressLeaves) {
+        this.compressLeaves = compressLeaves;
+    }
+
+    /**
+     * Nombre de partitions par sujet ({@link Shards}) construites à la fin du
+     * chargement, en plus des index complets ; 1 (par défaut) n'en construit
+     * aucune.
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Pool où tournent les évaluations par partition. Il est transmis aux
+     * versions tirées de celle-ci, y compris par {@link #merge()} : toutes
+     * partagent le même.
+     */
+    public void setShardPool(ForkJoinPool shardPool) {
+        this.shardPool = shardPool;
+    }
 
     @Override
     public void handleStatement(@NotNull Statement st) {
 
-        Integer subjectKey = dictionary.getKeyIfExists(st.getSubject().stringValue());
-        Integer predicateKey = dictionary.getKeyIfExists(st.getPredicate().stringValue());
-        Integer objectKey = dictionary.getKeyIfExists(st.getObject().stringValue());
+        int subjectKey = dictionary.getKeyIfExists(st.getSubject().stringValue());
+        int predicateKey = dictionary.getKeyIfExists(st.getPredicate().stringValue());
+        int objectKey = dictionary.getKeyIfExists(st.getObject().stringValue());
 
-        this.sopStore.update(subjectKey, objectKey, predicateKey);
-        this.opsStore.update(objectKey, predicateKey, subjectKey);
-        this.spoStore.update(subjectKey, predicateKey, objectKey);
-        this.ospStore.update(objectKey, subjectKey, predicateKey);
-        this.psoStore.update(predicateKey, subjectKey, objectKey);
-        this.posStore.update(predicateKey, objectKey, subjectKey);
+        // Un seul tampon pour toutes les permutations
+        this.triples.add(subjectKey, predicateKey, objectKey);
 
         setTriplets(getTriplets() + 1);
     }
 
+    /**
+     * Ajoute un lot de triples déjà encodés ; utilisé par les threads du
+     * {@link BulkLoader}.
+     */
+    public synchronized void addTriples(TripleBuffer batch) {
+        this.triples.addAll(batch);
+        setTriplets(getTriplets() + batch.size());
+    }
+
+    /**
+     * Une fois tous les triples lus, on construit en parallèle les permutations
+     * choisies, chacune en triant le tampon de triples dans son ordre.
+     */
+    @Override
+    public void endRDF() {
+        long begin = System.currentTimeMillis();
+
+        materialized.parallelStream()
+                .forEach(permutation -> buildStore(triples, permutation));
+        if (shardCount > 1) {
+            buildShards(triples, shardCount);
+        }
+        triples = null;
+
+        if (materialized.contains(Permutation.POS)) {
+            statistics = new Statistics(getPosStore(), dictionary.size());
+        }
+
+        indexesCreationTime = System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * Renvoie l'index de cette permutation. S'il n'a pas été construit au
+     * chargement, sa construction est lancée en tâche de fond (une seule fois,
+     * même si plusieurs requêtes le demandent en même temps) et on l'attend.
+     */
+    public Store getStore(Permutation permutation) {
+        if (materialized.contains(permutation)) {
+            return stores[permutation.ordinal()];
+        }
+        return prefetch(permutation).join();
+    }
+
+    /**
+     * Lance, si besoin, la construction en tâche de fond de l'index de cette
+     * permutation, sans l'attendre.
+     */
+    public CompletableFuture<Store> prefetch(Permutation permutation) {
+        if (materialized.contains(permutation)) {
+            return CompletableFuture.completedFuture(stores[permutation.ordinal()]);
+        }
+
+        return lazyBuilds.computeIfAbsent(permutation, key -> CompletableFuture.supplyAsync(() -> {
+            long begin = System.currentTimeMillis();
+
+            // On relit les triples depuis un index déjà construit
+            Permutation source = materialized.iterator().next();
+            Store sourceStore = stores[source.ordinal()];
+            TripleBuffer sourceTriples = new TripleBuffer(sourceStore.size());
+            sourceStore.appendTriples(sourceTriples, source);
+
+            Store store = buildStore(sourceTriples, key);
+            System.out.println("Built " + key + " index on demand in " + (System.currentTimeMillis() - begin) + "ms");
+            return store;
+        }));
+    }
+
+    /**
+     * Construit {@code count} partitions par sujet à partir d'un index déjà
+     * construit, par exemple après le chargement d'un {@link Snapshot}.
+     */
+    public void buildShards(int count) {
+        Permutation source = materialized.iterator().next();
+        Store sourceStore = stores[source.ordinal()];
+        TripleBuffer sourceTriples = new TripleBuffer(sourceStore.size());
+        sourceStore.appendTriples(sourceTriples, source);
+        buildShards(sourceTriples, count);
+    }
+
+    private void buildShards(TripleBuffer source, int count) {
+        long begin = System.currentTimeMillis();
+        if (shardPool == null) {
+            shardPool = Shards.newPool(count);
+        }
+        shards = Shards.build(source, count, compressLeaves, shardPool);
+        System.out.println("Built " + count + " POS shards in " + (System.currentTimeMillis() - begin) + "ms ("
+                + (shards.leafByteSize() >> 10) + "KB of leaves)");
+    }
+
+    /**
+     * Partitions par sujet de l'index POS, ou {@code null} s'il n'y en a pas.
+     */
+    public Shards getShards() {
+        return shards;
+    }
+
+    private Store buildStore(TripleBuffer source, Permutation permutation) {
+        Store store = stores[permutation.ordinal()];
+        store.build(source, permutation);
+
+        if (compressLeaves && (permutation == Permutation.POS || permutation == Permutation.PSO)) {
+            long plainBytes = store.leafByteSize();
+            store.compress();
+            System.out.println("Compressed " + permutation + " leaves: " + (plainBytes >> 10) + "KB -> "
+                    + (store.leafByteSize() >> 10) + "KB");
+        }
+        return store;
+    }
+
+    /**
+     * Les six index dans l'ordre de {@link Permutation} : SPO, SOP, PSO, POS,
+     * OSP, OPS. Ceux qui n'ont pas encore été construits sont vides.
+     */
+    public Store[] getStores() {
+        return stores.clone();
+    }
+
+    /**
+     * Nombre d'index construits jusqu'ici.
+     */
+    public int getBuiltStoreCount() {
+        int count = 0;
+        for (Store store : stores) {
+            if (store.isBuilt()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public Store getSopStore() {
-        return sopStore;
+        return getStore(Permutation.SOP);
     }
 
     public Store getOpsStore() {
-        return opsStore;
+        return getStore(Permutation.OPS);
     }
 
     public Store getSpoStore() {
-        return spoStore;
+        return getStore(Permutation.SPO);
     }
 
     public Store getOspStore() {
-        return ospStore;
+        return getStore(Permutation.OSP);
     }
 
     public Store getPsoStore() {
-        return psoStore;
+        return getStore(Permutation.PSO);
     }
 
     public Store getPosStore() {
-        return posStore;
+        return getStore(Permutation.POS);
+    }
+
+    /**
+     * Liste triée des sujets du pattern (?s, {@code predicate}, {@code object}),
+     * lue dans l'index POS, à travers le {@link PostingListCache} s'il est
+     * activé.
+     */
+    public PostingList getPostingList(int predicate, int object) {
+        PostingListCache cache = postingListCache;
+        PostingList list = cache == null
+                ? getPosStore().twoValuesFilter(predicate, object)
+                : cache.get(getPosStore(), 0, predicate, object);
+        // Le cache ne garde que les listes des index principaux
+        return delta.apply(list, predicate, object, subject -> true);
+    }
+
+    /**
+     * Comme {@link #getPostingList(int, int)}, sans passer par le cache : pour
+     * les listes lues une seule fois, comme les sondes des jointures par index,
+     * qui en chasseraient les listes partagées.
+     */
+    PostingList getUncachedPostingList(int predicate, int object) {
+        return delta.apply(getPosStore().twoValuesFilter(predicate, object), predicate, object, subject -> true);
+    }
+
+    /**
+     * Liste du pattern (?s, {@code predicate}, {@code object}) dans la
+     * partition {@code shard}, delta compris.
+     */
+    public PostingList getShardPostingList(int shard, int predicate, int object) {
+        PostingListCache cache = postingListCache;
+        PostingList list = cache == null
+                ? shards.getPosStore(shard).twoValuesFilter(predicate, object)
+                : cache.get(shards.getPosStore(shard), shard, predicate, object);
+        return delta.apply(list, predicate, object, subject -> Shards.shardOf(subject, shards.size()) == shard);
     }
 
-    public Dictionary<String> getDictionary() {
+    /**
+     * Vrai si ce triple est dans les index principaux, sans tenir compte du
+     * delta.
+     */
+    boolean containsBase(int subject, int predicate, int object) {
+        Permutation source = materialized.iterator().next();
+        int[] triple = {subject, predicate, object};
+        return stores[source.ordinal()].twoValuesFilter(triple[source.getFirst()], triple[source.getSecond()])
+                .containsInt(triple[source.getThird()]);
+    }
+
+    /**
+     * Modifications de cette version par rapport aux index principaux.
+     */
+    public Delta getDelta() {
+        return delta;
+    }
+
+    /**
+     * Numéro de cette version des données, différent pour chaque handler.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Active le cache des listes de patterns décodées avec ce budget en octets ;
+     * 0 le désactive.
+     */
+    public void setPostingListCacheBudget(long budget) {
+        postingListCache = budget > 0 ? new PostingListCache(budget) : null;
+    }
+
+    public PostingListCache getPostingListCache() {
+        return postingListCache;
+    }
+
+    /**
+     * Statistiques de cardinalité, calculées sur l'index POS à la fin du
+     * chargement (ou à la première demande si POS n'était pas construit). Elles
+     * ne tiennent pas compte du delta.
+     */
+    public Statistics getStatistics() {
+        if (statistics == null) {
+            synchronized (this) {
+                if (statistics == null) {
+                    statistics = new Statistics(getPosStore(), dictionary.size());
+                }
+            }
+        }
+        return statistics;
+    }
+
+    public TermDictionary getDictionary() {
         return dictionary;
     }
 
+    /**
+     * Nombre de triples, delta compris.
+     */
     public int getTriplets() {
-        return triplets;
+        return triplets + delta.getAddedCount() - delta.getDeletedCount();
     }
 
     public void setTriplets(int triplets) {
         this.triplets = triplets;
     }
-}
\ No newline at end of file
+
+    public long getIndexesCreationTime() {
+        return indexesCreationTime;
+    }
+}
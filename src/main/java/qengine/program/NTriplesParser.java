@@ -0,0 +1,306 @@
+package qengine.program;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lecture rapide de N-Triples, directement sur les octets d'un fichier projeté
+ * en mémoire.
+ *
+ * <p>
+ * Chaque ligne est découpée sur place : seuls les octets de ses trois termes
+ * sont recopiés dans un tampon réutilisé (les échappements des littéraux y sont
+ * décodés au passage), puis encodés avec
+ * {@link TermDictionary#getKeyIfExists(byte[], int, int)}. Aucun objet RDF4J ni
+ * aucune {@code String} n'est créé.
+ * </p>
+ *
+ * <p>
+ * Les termes obtenus sont ceux que donne {@code stringValue()} dans Rio : l'IRI
+ * sans chevrons, l'étiquette d'un nœud anonyme, la forme lexicale d'un
+ * littéral (sans guillemets, langue ni type). Une ligne que ce parseur ne sait
+ * pas lire (IRI avec échappement, ligne mal formée…) est recopiée telle quelle
+ * pour être confiée à Rio.
+ * </p>
+ *
+ * <p>
+ * Un parseur n'est utilisé que par un thread à la fois.
+ * </p>
+ */
+public final class NTriplesParser {
+    private final TermDictionary dictionary;
+
+    // Octets des trois termes de la ligne courante, et leurs positions
+    private byte[] scratch = new byte[1024];
+    private int scratchLength;
+    private final int[] termOffsets = new int[4];
+
+    private ByteBuffer buffer;
+    private int position;
+    private int end;
+
+    public NTriplesParser(TermDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Lit les lignes de {@code buffer} entre sa position et sa limite. Les
+     * triples reconnus sont encodés dans {@code triples} ; les lignes non
+     * reconnues sont recopiées, fin de ligne comprise, dans {@code unsupported}.
+     *
+     * @return le nombre de lignes non reconnues
+     */
+    public int parse(ByteBuffer buffer, TripleBuffer triples, ByteArrayOutputStream unsupported) {
+        this.buffer = buffer;
+        int limit = buffer.limit();
+        int lineStart = buffer.position();
+        int unsupportedLines = 0;
+
+        try {
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+
+                if (!parseLine(lineStart, lineEnd, triples)) {
+                    byte[] line = new byte[lineEnd - lineStart];
+                    buffer.get(lineStart, line);
+                    unsupported.writeBytes(line);
+                    unsupported.write('\n');
+                    unsupportedLines++;
+                }
+                lineStart = lineEnd + 1;
+            }
+        } finally {
+            this.buffer = null;
+        }
+        return unsupportedLines;
+    }
+
+    private boolean parseLine(int lineStart, int lineEnd, TripleBuffer triples) {
+        position = lineStart;
+        end = lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+        scratchLength = 0;
+
+        skipWhitespace();
+        if (position == end || buffer.get(position) == '#') {
+            // Ligne vide ou commentaire
+            return true;
+        }
+
+        termOffsets[0] = scratchLength;
+        if (!readIRI() && !readBlankNode()) {
+            return false;
+        }
+        skipWhitespace();
+        termOffsets[1] = scratchLength;
+        if (!readIRI()) {
+            return false;
+        }
+        skipWhitespace();
+        termOffsets[2] = scratchLength;
+        if (!readIRI() && !readBlankNode() && !readLiteral()) {
+            return false;
+        }
+        termOffsets[3] = scratchLength;
+
+        skipWhitespace();
+        if (position == end || buffer.get(position) != '.') {
+            return false;
+        }
+        position++;
+        skipWhitespace();
+        if (position != end && buffer.get(position) != '#') {
+            return false;
+        }
+
+        // La ligne est valide : on peut encoder ses termes
+        triples.add(key(0), key(1), key(2));
+        return true;
+    }
+
+    private int key(int term) {
+        return dictionary.getKeyIfExists(scratch, termOffsets[term], termOffsets[term + 1] - termOffsets[term]);
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte current = buffer.get(position);
+            if (current != ' ' && current != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    // <iri>, sans échappement
+    private boolean readIRI() {
+        if (position == end || buffer.get(position) != '<') {
+            return false;
+        }
+        int start = position + 1;
+        int close = start;
+        while (close < end) {
+            byte current = buffer.get(close);
+            if (current == '>') {
+                copy(start, close - start);
+                position = close + 1;
+                return true;
+            }
+            if (current == '\\') {
+                return false;
+            }
+            close++;
+        }
+        return false;
+    }
+
+    // _:etiquette ; une étiquette ne finit jamais par un point
+    private boolean readBlankNode() {
+        if (position + 2 > end || buffer.get(position) != '_' || buffer.get(position + 1) != ':') {
+            return false;
+        }
+        int start = position + 2;
+        int stop = start;
+        while (stop < end) {
+            byte current = buffer.get(stop);
+            if (current == ' ' || current == '\t' || current == '<' || current == '"') {
+                break;
+            }
+            stop++;
+        }
+        while (stop > start && buffer.get(stop - 1) == '.') {
+            stop--;
+        }
+        if (stop == start) {
+            return false;
+        }
+        copy(start, stop - start);
+        position = stop;
+        return true;
+    }
+
+    // "forme lexicale" suivie éventuellement de @langue ou de ^^<type>
+    private boolean readLiteral() {
+        if (position == end || buffer.get(position) != '"') {
+            return false;
+        }
+        position++;
+        while (true) {
+            if (position == end) {
+                return false;
+            }
+            byte current = buffer.get(position++);
+            if (current == '"') {
+                break;
+            }
+            if (current != '\\') {
+                append(current);
+            } else if (!readEscape()) {
+                return false;
+            }
+        }
+
+        if (position < end && buffer.get(position) == '@') {
+            int start = ++position;
+            while (position < end && isLanguageTagByte(buffer.get(position))) {
+                position++;
+            }
+            return position > start;
+        }
+        if (position + 1 < end && buffer.get(position) == '^' && buffer.get(position + 1) == '^') {
+            position += 2;
+            // Le type n'est pas gardé : on le lit puis on l'enlève du tampon
+            int length = scratchLength;
+            boolean valid = readIRI();
+            scratchLength = length;
+            return valid;
+        }
+        return true;
+    }
+
+    private static boolean isLanguageTagByte(byte value) {
+        return (value >= 'a' && value <= 'z') || (value >= 'A' && value <= 'Z') || (value >= '0' && value <= '9') || value == '-';
+    }
+
+    // Échappement d'un littéral, le \ déjà lu
+    private boolean readEscape() {
+        if (position == end) {
+            return false;
+        }
+        byte escaped = buffer.get(position++);
+        switch (escaped) {
+            case 't' -> append((byte) '\t');
+            case 'b' -> append((byte) '\b');
+            case 'n' -> append((byte) '\n');
+            case 'r' -> append((byte) '\r');
+            case 'f' -> append((byte) '\f');
+            case '"', '\'', '\\' -> append(escaped);
+            case 'u' -> {
+                return readCodePoint(4);
+            }
+            case 'U' -> {
+                return readCodePoint(8);
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // \\uXXXX ou \\UXXXXXXXX, réencodé en UTF-8
+    private boolean readCodePoint(int digits) {
+        if (position + digits > end) {
+            return false;
+        }
+        int codePoint = 0;
+        for (int i = 0; i < digits; i++) {
+            int digit = Character.digit(buffer.get(position++), 16);
+            if (digit < 0) {
+                return false;
+            }
+            codePoint = (codePoint << 4) | digit;
+        }
+        if (codePoint < 0 || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return false;
+        }
+
+        if (codePoint < 0x80) {
+            append((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            append((byte) (0xC0 | (codePoint >>> 6)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        } else if (codePoint < 0x10000) {
+            append((byte) (0xE0 | (codePoint >>> 12)));
+            append((byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        } else {
+            append((byte) (0xF0 | (codePoint >>> 18)));
+            append((byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+            append((byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+            append((byte) (0x80 | (codePoint & 0x3F)));
+        }
+        return true;
+    }
+
+    private void copy(int from, int length) {
+        ensureCapacity(length);
+        buffer.get(from, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    private void append(byte value) {
+        ensureCapacity(1);
+        scratch[scratchLength++] = value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (scratchLength + extra > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + extra));
+        }
+    }
+}
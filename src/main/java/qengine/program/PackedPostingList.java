@@ -0,0 +1,111 @@
+package qengine.program;
+
+/**
+ * {@link PostingList} sur une liste compressée par blocs d'un
+ * {@link CompressedLists}. Les blocs ne sont décodés qu'au fur et à mesure du
+ * parcours ; ceux que le curseur saute grâce aux pointeurs de saut ne le sont
+ * jamais.
+ */
+final class PackedPostingList extends PostingList {
+    private static final int BLOCK_SIZE = CompressedLists.BLOCK_SIZE;
+
+    private final CompressedLists lists;
+    private final int firstBlock;
+    private final int length;
+
+    PackedPostingList(CompressedLists lists, int firstBlock, int length) {
+        this.lists = lists;
+        this.firstBlock = firstBlock;
+        this.length = length;
+    }
+
+    @Override
+    public int getInt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return lists.valueAt(firstBlock + index / BLOCK_SIZE, index % BLOCK_SIZE);
+    }
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public int[] toIntArray() {
+        int[] values = new int[length];
+        for (int offset = 0, block = firstBlock; offset < length; offset += BLOCK_SIZE, block++) {
+            lists.decode(block, Math.min(BLOCK_SIZE, length - offset), values, offset);
+        }
+        return values;
+    }
+
+    @Override
+    Cursor cursor() {
+        return new PackedCursor();
+    }
+
+    /**
+     * Curseur qui garde le bloc courant décodé dans un tampon.
+     */
+    private final class PackedCursor extends Cursor {
+        private final int endBlock = firstBlock + (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        private final int[] buffer = new int[BLOCK_SIZE];
+        private int block = firstBlock;
+        private int bufferSize;
+        private int position = 0;
+
+        private PackedCursor() {
+            load(firstBlock);
+        }
+
+        @Override
+        int current() {
+            return block < endBlock ? buffer[position] : END;
+        }
+
+        @Override
+        int advance() {
+            if (block < endBlock && ++position == bufferSize) {
+                load(block + 1);
+            }
+            return current();
+        }
+
+        @Override
+        int seek(int target) {
+            if (block >= endBlock || buffer[position] >= target) {
+                return current();
+            }
+
+            if (buffer[bufferSize - 1] < target) {
+                // La cible est au-delà de ce bloc : on saute grâce aux premiers identifiants des blocs
+                if (block + 1 == endBlock) {
+                    block = endBlock;
+                    return END;
+                }
+                load(lists.findBlock(block + 1, endBlock, target));
+                if (buffer[0] >= target) {
+                    return buffer[0];
+                }
+            }
+
+            position = Intersection.gallop(buffer, position, bufferSize, target);
+            if (position == bufferSize) {
+                // La cible tombe entre ce bloc et le suivant
+                load(block + 1);
+            }
+            return current();
+        }
+
+        private void load(int newBlock) {
+            block = newBlock;
+            position = 0;
+            if (block < endBlock) {
+                bufferSize = Math.min(BLOCK_SIZE, length - (block - firstBlock) * BLOCK_SIZE);
+                lists.decode(block, bufferSize, buffer, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package qengine.program;
+
+/**
+ * Les six ordres possibles des éléments d'un triple, un par {@link Store}.
+ * Chaque permutation donne la position (0 pour le sujet, 1 pour le prédicat,
+ * 2 pour l'objet) de sa première, deuxième et troisième clé.
+ */
+public enum Permutation {
+    SPO(0, 1, 2),
+    SOP(0, 2, 1),
+    PSO(1, 0, 2),
+    POS(1, 2, 0),
+    OSP(2, 0, 1),
+    OPS(2, 1, 0);
+
+    private final int first;
+    private final int second;
+    private final int third;
+
+    Permutation(int first, int second, int third) {
+        this.first = first;
+        this.second = second;
+        this.third = third;
+    }
+
+    /**
+     * Permutation dont les premières clés sont exactement les positions connues
+     * d'un pattern, ce qui permet de le résoudre par une simple recherche.
+     */
+    public static Permutation forPattern(boolean subjectBound, boolean predicateBound, boolean objectBound) {
+        if (subjectBound) {
+            return objectBound && !predicateBound ? SOP : SPO;
+        }
+        if (predicateBound) {
+            return objectBound ? POS : PSO;
+        }
+        return objectBound ? OPS : SPO;
+    }
+
+    public int getFirst() {
+        return first;
+    }
+
+    public int getSecond() {
+        return second;
+    }
+
+    public int getThird() {
+        return third;
+    }
+}
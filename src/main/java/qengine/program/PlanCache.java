@@ -0,0 +1,106 @@
+package qengine.program;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache LRU borné des plans compilés ({@link QueryPlan}), indexé par le texte
+ * normalisé de la requête. Un plan contient déjà les identifiants du prédicat
+ * et de l'objet de chaque pattern et leur ordre d'évaluation : une requête
+ * déjà vue n'est ni réanalysée par RDF4J ni replanifiée.
+ *
+ * <p>
+ * Les plans dépendent du dictionnaire et des statistiques : le cache doit être
+ * vidé avec {@link #clear()} si les données changent.
+ * </p>
+ */
+public class PlanCache {
+    private final int capacity;
+    private final LinkedHashMap<String, QueryPlan> plans;
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    public PlanCache(int capacity) {
+        this.capacity = capacity;
+        // Ordre d'accès : l'entrée la plus ancienne est la moins récemment utilisée
+        this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                if (size() > PlanCache.this.capacity) {
+                    statistics.recordEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Renvoie le plan de cette requête (déjà normalisée avec
+     * {@link #normalize(String)}), ou {@code null} s'il n'est pas en cache.
+     */
+    public synchronized QueryPlan get(String normalizedQuery) {
+        QueryPlan plan = plans.get(normalizedQuery);
+        if (plan == null) {
+            statistics.recordMiss();
+        } else {
+            statistics.recordHit();
+        }
+        return plan;
+    }
+
+    public synchronized void put(String normalizedQuery, QueryPlan plan) {
+        if (capacity > 0) {
+            plans.put(normalizedQuery, plan);
+        }
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Forme canonique du texte d'une requête : les suites de blancs sont
+     * réduites à une espace, sauf à l'intérieur des littéraux entre guillemets,
+     * et les blancs de début et de fin sont retirés.
+     */
+    public static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+
+        for (int i = 0; i < query.length(); i++) {
+            char current = query.charAt(i);
+            if (quote != 0) {
+                normalized.append(current);
+                if (current == '\\' && i + 1 < query.length()) {
+                    normalized.append(query.charAt(++i));
+                } else if (current == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+
+            if (Character.isWhitespace(current)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (current == '"' || current == '\'') {
+                quote = current;
+            }
+            normalized.append(current);
+        }
+        return normalized.toString();
+    }
+}
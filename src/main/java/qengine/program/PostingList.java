@@ -0,0 +1,164 @@
+package qengine.program;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Liste triée, sans doublons et en lecture seule d'identifiants (positifs ou
+ * nuls) lue dans un {@link Store}.
+ *
+ * <p>
+ * Elle se comporte comme une {@code List<Integer>} pour le code existant, mais
+ * {@link #getInt(int)} permet de lire les identifiants sans boxing. Selon le
+ * format de l'index, c'est une vue sur un tableau ({@link ArrayPostingList}) ou
+ * sur des blocs compressés ({@link PackedPostingList}) ; dans les deux cas,
+ * aucune copie n'est faite. Les intersections parcourent les listes avec un
+ * {@link Cursor}.
+ * </p>
+ *
+ * <p>
+ * Seule la vue sur un tableau est en accès direct : dans une liste compressée,
+ * {@link #getInt(int)} décode un bloc entier. Le parcours
+ * ({@link #iterator()}), la comparaison et le haché passent donc par un
+ * {@link Cursor}.
+ * </p>
+ */
+public abstract class PostingList extends AbstractList<Integer> {
+    public static final PostingList EMPTY = new ArrayPostingList(new int[0], 0, 0);
+
+    PostingList() {
+    }
+
+    /**
+     * Vue sur l'intégralité d'un tableau d'identifiants déjà trié et sans
+     * doublons.
+     */
+    public static PostingList of(int[] sortedValues) {
+        return sortedValues.length == 0 ? EMPTY : new ArrayPostingList(sortedValues, 0, sortedValues.length);
+    }
+
+    public abstract int getInt(int index);
+
+    @Override
+    public Integer get(int index) {
+        return getInt(index);
+    }
+
+    /**
+     * Copie les identifiants dans un nouveau tableau.
+     */
+    public abstract int[] toIntArray();
+
+    /**
+     * Vrai si {@code value} est dans la liste, sans boxing.
+     */
+    boolean containsInt(int value) {
+        return !isEmpty() && cursor().seek(value) == value;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        return value instanceof Integer id && containsInt(id);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        if (isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        Cursor cursor = cursor();
+        return new Iterator<>() {
+            private int next = cursor.current();
+
+            @Override
+            public boolean hasNext() {
+                return next != Cursor.END;
+            }
+
+            @Override
+            public Integer next() {
+                if (next == Cursor.END) {
+                    throw new NoSuchElementException();
+                }
+                int current = next;
+                next = cursor.advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof List<?> list) || list.size() != size()) {
+            return false;
+        }
+        if (isEmpty()) {
+            return true;
+        }
+        if (other instanceof PostingList postingList) {
+            // Deux parcours en parallèle, sans boxing
+            Cursor mine = cursor();
+            Cursor theirs = postingList.cursor();
+            for (int id = mine.current(); id != Cursor.END; id = mine.advance(), theirs.advance()) {
+                if (id != theirs.current()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        Iterator<?> theirs = list.iterator();
+        for (Integer id : this) {
+            if (!id.equals(theirs.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        if (!isEmpty()) {
+            Cursor cursor = cursor();
+            for (int id = cursor.current(); id != Cursor.END; id = cursor.advance()) {
+                hash = 31 * hash + id;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Nouveau curseur, placé sur le premier identifiant.
+     */
+    abstract Cursor cursor();
+
+    /**
+     * Parcours d'une liste par ordre croissant, avec saut en avant.
+     */
+    abstract static class Cursor {
+        // Renvoyé une fois la liste épuisée
+        static final int END = -1;
+
+        /**
+         * Identifiant courant, ou {@link #END}.
+         */
+        abstract int current();
+
+        /**
+         * Passe à l'identifiant suivant et le renvoie, ou {@link #END}.
+         */
+        abstract int advance();
+
+        /**
+         * Avance jusqu'au premier identifiant supérieur ou égal à
+         * {@code target} (sans jamais reculer) et le renvoie, ou {@link #END}.
+         */
+        abstract int seek(int target);
+    }
+}
@@ -0,0 +1,106 @@
+package qengine.program;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache LRU des listes de patterns (prédicat, objet) décodées, partagé par les
+ * requêtes évaluées en parallèle.
+ *
+ * <p>
+ * Lire une liste dans l'index ne coûte que deux recherches dichotomiques : ce
+ * qui vaut d'être gardé, c'est le décodage des listes compressées
+ * ({@link PackedPostingList}, {@link BitmapPostingList}), refait à chaque
+ * parcours. Le cache ne garde donc que les listes compressées d'au moins
+ * {@link #MIN_CACHED_SIZE} identifiants, sous forme de tableau trié et
+ * immuable ; les autres sont renvoyées telles quelles, sans consulter le cache.
+ * </p>
+ *
+ * <p>
+ * Le cache est borné par un budget en octets, chaque liste étant comptée à la
+ * taille de son tableau ; au-delà, les listes les moins récemment utilisées
+ * sont évincées. Une même liste absente peut être décodée par deux threads en
+ * même temps : une seule copie est gardée.
+ * </p>
+ */
+public class PostingListCache {
+    /**
+     * Taille minimale d'une liste gardée : les plus petites se décodent plus
+     * vite qu'on ne les retrouve.
+     */
+    public static final int MIN_CACHED_SIZE = 1024;
+
+    private final long budget;
+    private final LinkedHashMap<Key, PostingList> lists = new LinkedHashMap<>(16, 0.75f, true);
+    private final CacheStatistics statistics = new CacheStatistics();
+    private long usedBytes = 0;
+
+    /**
+     * @param budget taille maximale, en octets, des listes gardées
+     */
+    public PostingListCache(long budget) {
+        this.budget = budget;
+    }
+
+    // Pattern d'une partition (0 sans partitionnement)
+    private record Key(int shard, int predicate, int object) {
+    }
+
+    /**
+     * Renvoie la liste du pattern ({@code predicate}, {@code object}) lue dans
+     * {@code posStore}, l'index POS de la partition {@code shard}, décodée si
+     * elle est en cache ou assez grande pour y entrer.
+     */
+    public PostingList get(Store posStore, int shard, int predicate, int object) {
+        PostingList list = posStore.twoValuesFilter(predicate, object);
+        if (list instanceof ArrayPostingList || list.size() < MIN_CACHED_SIZE || (long) list.size() * Integer.BYTES > budget) {
+            return list;
+        }
+
+        Key key = new Key(shard, predicate, object);
+        synchronized (this) {
+            PostingList cached = lists.get(key);
+            if (cached != null) {
+                statistics.recordHit();
+                return cached;
+            }
+        }
+
+        statistics.recordMiss();
+        // Décodée hors du verrou
+        PostingList decoded = PostingList.of(list.toIntArray());
+        synchronized (this) {
+            PostingList cached = lists.putIfAbsent(key, decoded);
+            if (cached != null) {
+                return cached;
+            }
+            usedBytes += (long) decoded.size() * Integer.BYTES;
+            Iterator<Map.Entry<Key, PostingList>> iterator = lists.entrySet().iterator();
+            while (usedBytes > budget) {
+                Map.Entry<Key, PostingList> eldest = iterator.next();
+                usedBytes -= (long) eldest.getValue().size() * Integer.BYTES;
+                iterator.remove();
+                statistics.recordEviction();
+            }
+        }
+        return decoded;
+    }
+
+    public synchronized void clear() {
+        lists.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return lists.size();
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+}
@@ -0,0 +1,192 @@
+package qengine.program;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mesures du chemin critique de l'évaluation des requêtes, regroupées par forme
+ * de requête (son nombre de patterns) : un {@link LatencyHistogram} par étape,
+ * un histogramme des tailles de résultat, et des compteurs globaux.
+ *
+ * <p>
+ * Les histogrammes d'une forme sont créés la première fois qu'elle est vue ;
+ * ensuite, enregistrer une mesure n'alloue plus rien. Les requêtes de plus de
+ * {@link #MAX_SHAPE} patterns partagent la même forme.
+ * </p>
+ */
+public class QueryMetrics {
+
+    /**
+     * Étapes chronométrées. {@link #LOOKUP} est mesurée pour chaque pattern,
+     * {@link #INTERSECTION} pour chaque intersection, les autres une fois par
+     * requête. Les résultats n'étant décodés qu'à la lecture, {@link #DECODE}
+     * est mesurée à l'export et n'est pas comprise dans {@link #TOTAL}.
+     */
+    public enum Stage {
+        // Analyse SPARQL et construction du plan (consultation du dictionnaire)
+        PARSE,
+        // Récupération de la liste d'un pattern dans l'index
+        LOOKUP,
+        INTERSECTION,
+        DECODE,
+        TOTAL
+    }
+
+    static final int MAX_SHAPE = 16;
+    private static final int STAGE_COUNT = Stage.values().length;
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    // Par forme : une case par étape, puis celle des tailles de résultat
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+            new AtomicReferenceArray<>((MAX_SHAPE + 1) * (STAGE_COUNT + 1));
+    private final LongAdder dictionaryMisses = new LongAdder();
+    private final LongAdder unsatisfiableQueries = new LongAdder();
+
+    public void record(Stage stage, int shape, long nanos) {
+        histogram(shape, stage.ordinal()).record(nanos);
+    }
+
+    public void recordResultSize(int shape, int size) {
+        histogram(shape, STAGE_COUNT).record(size);
+    }
+
+    /**
+     * Note les termes d'une requête absents du dictionnaire ; une requête qui en
+     * a au moins un est insatisfiable.
+     */
+    public void recordDictionaryMisses(int misses) {
+        if (misses > 0) {
+            dictionaryMisses.add(misses);
+            unsatisfiableQueries.increment();
+        }
+    }
+
+    public long getDictionaryMisses() {
+        return dictionaryMisses.sum();
+    }
+
+    public long getUnsatisfiableQueries() {
+        return unsatisfiableQueries.sum();
+    }
+
+    /**
+     * Nombre de requêtes évaluées, toutes formes confondues.
+     */
+    public long getQueryCount() {
+        long count = 0;
+        for (int shape = 0; shape <= MAX_SHAPE; shape++) {
+            LatencyHistogram total = histograms.get(slot(shape, Stage.TOTAL.ordinal()));
+            count += total == null ? 0 : total.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Histogramme d'une étape pour une forme, ou {@code null} si aucune requête
+     * de cette forme n'a été évaluée.
+     */
+    public LatencyHistogram getHistogram(Stage stage, int shape) {
+        return histograms.get(slot(shape, stage.ordinal()));
+    }
+
+    public String toJson() {
+        return toJson(Map.of());
+    }
+
+    /**
+     * Rapport JSON : compteurs globaux, ceux des caches donnés, puis, pour
+     * chaque forme rencontrée, les centiles de chaque étape (en nanosecondes) et
+     * des tailles de résultat.
+     */
+    public String toJson(Map<String, CacheStatistics> caches) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"latencyUnit\": \"ns\",\n");
+        json.append("  \"queries\": ").append(getQueryCount()).append(",\n");
+        json.append("  \"dictionaryMisses\": ").append(getDictionaryMisses()).append(",\n");
+        json.append("  \"unsatisfiableQueries\": ").append(getUnsatisfiableQueries()).append(",\n");
+        json.append("  \"caches\": {");
+        String separator = "";
+        for (Map.Entry<String, CacheStatistics> cache : caches.entrySet()) {
+            json.append(separator).append('"').append(cache.getKey()).append("\": ").append(cache.getValue().toJson());
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"shapes\": [");
+
+        boolean firstShape = true;
+        for (int shape = 0; shape <= MAX_SHAPE; shape++) {
+            LatencyHistogram total = histograms.get(slot(shape, Stage.TOTAL.ordinal()));
+            if (total == null) {
+                continue;
+            }
+
+            json.append(firstShape ? "\n" : ",\n");
+            firstShape = false;
+            json.append("    {\"patterns\": ").append(shape == MAX_SHAPE ? "\"" + MAX_SHAPE + "+\"" : shape);
+            json.append(", \"queries\": ").append(total.getCount());
+            for (Stage stage : Stage.values()) {
+                appendHistogram(json, stage.name().toLowerCase(Locale.ROOT), histograms.get(slot(shape, stage.ordinal())));
+            }
+            appendHistogram(json, "resultSize", histograms.get(slot(shape, STAGE_COUNT)));
+            json.append('}');
+        }
+
+        json.append(firstShape ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Résumé lisible : p50/p95/p99/max du temps total (en microsecondes) par
+     * forme de requête.
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (int shape = 0; shape <= MAX_SHAPE; shape++) {
+            LatencyHistogram total = histograms.get(slot(shape, Stage.TOTAL.ordinal()));
+            if (total == null) {
+                continue;
+            }
+            summary.append(String.format(Locale.ROOT, "%3s patterns: %d queries, p50=%.1fus p95=%.1fus p99=%.1fus max=%.1fus%n",
+                    shape == MAX_SHAPE ? MAX_SHAPE + "+" : Integer.toString(shape), total.getCount(),
+                    total.getValueAtPercentile(50) / 1e3, total.getValueAtPercentile(95) / 1e3,
+                    total.getValueAtPercentile(99) / 1e3, total.getMax() / 1e3));
+        }
+        summary.append(String.format("Dictionary misses: %d (%d unsatisfiable queries)%n",
+                getDictionaryMisses(), getUnsatisfiableQueries()));
+        return summary.toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, String name, LatencyHistogram histogram) {
+        json.append(", \"").append(name).append("\": ");
+        if (histogram == null) {
+            json.append("null");
+            return;
+        }
+
+        json.append("{\"count\": ").append(histogram.getCount());
+        json.append(String.format(Locale.ROOT, ", \"mean\": %.1f", histogram.getMean()));
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append((int) percentile).append("\": ").append(histogram.getValueAtPercentile(percentile));
+        }
+        json.append(", \"max\": ").append(histogram.getMax()).append('}');
+    }
+
+    private LatencyHistogram histogram(int shape, int column) {
+        int slot = slot(shape, column);
+        LatencyHistogram histogram = histograms.get(slot);
+        if (histogram == null) {
+            // Première mesure pour cette forme : un seul histogramme gagne la course
+            histograms.compareAndSet(slot, null, new LatencyHistogram());
+            histogram = histograms.get(slot);
+        }
+        return histogram;
+    }
+
+    private static int slot(int shape, int column) {
+        return Math.min(Math.max(shape, 0), MAX_SHAPE) * (STAGE_COUNT + 1) + column;
+    }
+}
@@ -0,0 +1,305 @@
+package qengine.program;
+
+import org.eclipse.rdf4j.query.algebra.Count;
+import org.eclipse.rdf4j.query.algebra.Distinct;
+import org.eclipse.rdf4j.query.algebra.Extension;
+import org.eclipse.rdf4j.query.algebra.ExtensionElem;
+import org.eclipse.rdf4j.query.algebra.Group;
+import org.eclipse.rdf4j.query.algebra.GroupElem;
+import org.eclipse.rdf4j.query.algebra.Join;
+import org.eclipse.rdf4j.query.algebra.Projection;
+import org.eclipse.rdf4j.query.algebra.ProjectionElem;
+import org.eclipse.rdf4j.query.algebra.ProjectionElemList;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
+import org.eclipse.rdf4j.query.algebra.QueryRoot;
+import org.eclipse.rdf4j.query.algebra.Slice;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plan d'exécution d'une requête en étoile : les patterns, encodés avec le
+ * dictionnaire, triés du plus sélectif au moins sélectif d'après les
+ * {@link Statistics}, avec les modificateurs de la requête qui peuvent être
+ * pris en compte pendant l'évaluation ({@code LIMIT}, {@code OFFSET},
+ * {@code COUNT}). Une requête qui sort de ce cadre ({@code ORDER BY},
+ * {@code FILTER}…) est refusée par une {@link IllegalArgumentException} plutôt
+ * qu'évaluée de travers.
+ *
+ * <p>
+ * Une requête qui n'est pas une étoile (variable en position de prédicat ou
+ * d'objet, plusieurs sujets, plusieurs variables projetées…) n'a pas d'étapes :
+ * son plan porte un {@link JoinPlan}, évalué par {@link JoinEvaluator}.
+ * </p>
+ */
+public class QueryPlan {
+
+    /**
+     * Un pattern (?v0, prédicat, objet) encodé, avec sa cardinalité estimée.
+     */
+    public record Step(String predicateLabel, String objectLabel, int predicate, int object, int estimate) {
+    }
+
+    private final List<Step> steps;
+    private final int missingTerms;
+    // Null pour une requête en étoile
+    private JoinPlan join = null;
+    private long limit = -1;
+    private long offset = 0;
+    private boolean countOnly = false;
+
+    private QueryPlan(List<Step> steps, int missingTerms) {
+        this.steps = steps;
+        this.missingTerms = missingTerms;
+    }
+
+    /**
+     * Plan d'une requête analysée par RDF4J, avec ses modificateurs.
+     */
+    public static QueryPlan of(ParsedQuery query, MainRDFHandler rdfHandler) {
+        List<StatementPattern> patterns = StatementPatternCollector.process(query.getTupleExpr());
+        List<String> projected = new ArrayList<>();
+        long[] slice = {-1, 0};
+        boolean[] modifiers = new boolean[3];
+        // Variable comptée, null pour COUNT(*)
+        String[] counted = new String[1];
+        query.getTupleExpr().visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(Slice node) {
+                if (node.hasLimit()) {
+                    slice[0] = node.getLimit();
+                }
+                if (node.hasOffset()) {
+                    slice[1] = node.getOffset();
+                }
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(Count node) {
+                if (node.getArg() != null && !(node.getArg() instanceof Var)) {
+                    throw new IllegalArgumentException("Only COUNT(*) and COUNT(?variable) are supported");
+                }
+                modifiers[0] = true;
+                modifiers[2] |= node.isDistinct();
+                counted[0] = node.getArg() == null ? null : ((Var) node.getArg()).getName();
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(Distinct node) {
+                modifiers[1] = true;
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(Projection node) {
+                // Seule la projection la plus externe compte
+                if (projected.isEmpty()) {
+                    for (ProjectionElem element : node.getProjectionElemList().getElements()) {
+                        projected.add(element.getSourceName());
+                    }
+                }
+                super.meet(node);
+            }
+
+            @Override
+            protected void meetNode(QueryModelNode node) {
+                if (!isSupported(node)) {
+                    throw new IllegalArgumentException("Unsupported query construct: " + node.getSignature());
+                }
+                super.meetNode(node);
+            }
+        });
+
+        if (counted[0] != null && patterns.stream().noneMatch(pattern -> pattern.getVarList().stream()
+                .anyMatch(var -> !var.hasValue() && var.getName().equals(counted[0])))) {
+            throw new IllegalArgumentException("Counted variable ?" + counted[0] + " is not bound by the query");
+        }
+        QueryPlan plan;
+        if (modifiers[0] ? isStar(patterns, List.of()) : isStar(patterns, projected)) {
+            plan = of(patterns, rdfHandler);
+        } else {
+            // Pour COUNT, on compte les solutions de toutes les variables, ou les
+            // valeurs distinctes de la variable comptée pour COUNT(DISTINCT ?x)
+            List<String> solutionVariables = !modifiers[0] ? projected
+                    : modifiers[2] && counted[0] != null ? List.of(counted[0]) : List.of();
+            JoinPlan join = JoinPlan.of(patterns, solutionVariables, modifiers[0] ? modifiers[2] : modifiers[1], rdfHandler);
+            plan = new QueryPlan(List.of(), join.getMissingTermCount());
+            plan.join = join;
+        }
+        plan.limit = slice[0];
+        plan.offset = slice[1];
+        plan.countOnly = modifiers[0];
+        return plan;
+    }
+
+    /**
+     * Vrai si le nœud fait partie de ce que le moteur sait évaluer : un BGP
+     * ({@link Join} de {@link StatementPattern}), projeté, éventuellement avec
+     * {@code DISTINCT}, {@code LIMIT}/{@code OFFSET} et un {@code COUNT} sans
+     * {@code GROUP BY}. Le reste ({@code FILTER}, {@code OPTIONAL},
+     * {@code UNION}, {@code ORDER BY}…) est refusé plutôt qu'évalué comme un
+     * simple BGP.
+     */
+    private static boolean isSupported(QueryModelNode node) {
+        if (node instanceof Group group) {
+            return group.getGroupBindingNames().isEmpty();
+        }
+        if (node instanceof ExtensionElem element) {
+            return element.getExpr() instanceof Count;
+        }
+        return node instanceof QueryRoot || node instanceof Projection || node instanceof ProjectionElemList
+                || node instanceof ProjectionElem || node instanceof Join || node instanceof StatementPattern
+                || node instanceof Var || node instanceof Distinct || node instanceof Slice || node instanceof Extension
+                || node instanceof GroupElem || node instanceof Count;
+    }
+
+    /**
+     * Vrai si les patterns forment une étoile (?v, prédicat, objet) sur une même
+     * variable, et que seule cette variable est projetée.
+     */
+    static boolean isStar(List<StatementPattern> patterns, List<String> projected) {
+        if (patterns.isEmpty()) {
+            return false;
+        }
+        String subject = patterns.get(0).getSubjectVar().getName();
+        for (StatementPattern pattern : patterns) {
+            if (pattern.getSubjectVar().hasValue() || !pattern.getSubjectVar().getName().equals(subject)
+                    || !pattern.getPredicateVar().hasValue() || !pattern.getObjectVar().hasValue()) {
+                return false;
+            }
+        }
+        return projected.isEmpty() || projected.equals(List.of(subject));
+    }
+
+    public static QueryPlan of(List<StatementPattern> patterns, MainRDFHandler rdfHandler) {
+        Statistics statistics = rdfHandler.getStatistics();
+        List<Step> steps = new ArrayList<>(patterns.size());
+        int missingTerms = 0;
+
+        for (StatementPattern pattern : patterns) {
+            String predicateLabel = pattern.getPredicateVar().getValue().stringValue();
+            String objectLabel = pattern.getObjectVar().getValue().stringValue();
+            // Simple consultation : une constante inconnue rend la requête vide
+            int predicateKey = rdfHandler.getDictionary().lookup(predicateLabel);
+            int objectKey = rdfHandler.getDictionary().lookup(objectLabel);
+            if (predicateKey == TermDictionary.ABSENT) {
+                missingTerms++;
+            }
+            if (objectKey == TermDictionary.ABSENT) {
+                missingTerms++;
+            }
+
+            steps.add(new Step(predicateLabel, objectLabel, predicateKey, objectKey,
+                    statistics.getPatternCount(predicateKey, objectKey)));
+        }
+
+        // Les patterns les plus sélectifs d'abord
+        steps.sort(Comparator.comparingInt(Step::estimate));
+        return new QueryPlan(steps, missingTerms);
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Plan de jointures d'une requête qui n'est pas une étoile, ou {@code null}.
+     */
+    public JoinPlan getJoin() {
+        return join;
+    }
+
+    /**
+     * Nombre de patterns de la requête, pour les métriques.
+     */
+    public int getShape() {
+        return join == null ? steps.size() : join.getPatterns().size();
+    }
+
+    /**
+     * Nombre d'identifiants par solution : les variables projetées d'une
+     * requête générale, une seule pour une étoile.
+     */
+    public int getWidth() {
+        return join == null ? 1 : join.getProjection().length;
+    }
+
+    /**
+     * Vrai si l'un des termes de la requête n'apparaît pas dans les données : le
+     * résultat est alors forcément vide.
+     */
+    public boolean isUnsatisfiable() {
+        return missingTerms > 0;
+    }
+
+    /**
+     * Nombre maximal de solutions ({@code LIMIT}), ou -1 s'il n'y en a pas.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Nombre de solutions à calculer : {@code OFFSET + LIMIT}, ou
+     * {@link Integer#MAX_VALUE} sans {@code LIMIT}. Pour {@code COUNT}, toutes
+     * les solutions sont comptées : {@code LIMIT} et {@code OFFSET} portent sur
+     * la ligne du compte.
+     */
+    public int getRequiredResults() {
+        return limit < 0 || countOnly ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, offset + limit);
+    }
+
+    /**
+     * Vrai si la requête ne demande que le nombre de solutions
+     * ({@code SELECT (COUNT(...) AS ?n)}).
+     */
+    public boolean isCountOnly() {
+        return countOnly;
+    }
+
+    /**
+     * Nombre de termes de la requête absents du dictionnaire.
+     */
+    public int getMissingTermCount() {
+        return missingTerms;
+    }
+
+    /**
+     * Décrit l'ordre choisi avec, pour chaque étape, la cardinalité estimée et
+     * réelle du pattern, puis celles du résultat intermédiaire. Les tailles
+     * réelles valent -1 pour les étapes non évaluées.
+     */
+    public String explain(Statistics statistics, int[] actualPatternSizes, int[] actualIntermediateSizes) {
+        StringBuilder explanation = new StringBuilder();
+        double estimatedIntermediate = 0;
+
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            estimatedIntermediate = i == 0
+                    ? step.estimate()
+                    : estimatedIntermediate * statistics.getSelectivity(step.predicate(), step.object());
+
+            explanation.append(String.format("  %d. <%s> <%s> pattern est=%d act=%s | intermediate est=%.1f act=%s%n",
+                    i + 1, step.predicateLabel(), step.objectLabel(),
+                    step.estimate(), format(actualPatternSizes[i]),
+                    estimatedIntermediate, format(actualIntermediateSizes[i])));
+        }
+        return explanation.toString();
+    }
+
+    private static String format(int actual) {
+        return actual < 0 ? "skipped" : Integer.toString(actual);
+    }
+}
@@ -0,0 +1,132 @@
+package qengine.program;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Résultat d'une requête, gardé sous forme d'identifiants : chaque terme n'est
+ * décodé avec le dictionnaire qu'au moment où on le lit (par {@link #get(int)}
+ * ou en parcourant la liste). Tant que le résultat n'est pas exporté, il ne
+ * coûte donc qu'un {@code int} par solution.
+ *
+ * <p>
+ * Une solution peut compter plusieurs variables ({@link #width()}) : ses
+ * identifiants se suivent dans le tableau, et elle est lue comme une seule
+ * chaîne, ses termes séparés par des tabulations.
+ * </p>
+ *
+ * <p>
+ * Pour une requête {@code COUNT}, la liste ne contient qu'un élément, le nombre
+ * de solutions, obtenu sans rien décoder.
+ * </p>
+ */
+public final class QueryResult extends AbstractList<String> implements RandomAccess {
+    private final int[] keys;
+    private final int width;
+    // Solutions gardées, en nombre de lignes
+    private final int from;
+    private final int to;
+    private final TermDictionary dictionary;
+    private final boolean countOnly;
+    private final int shape;
+
+    /**
+     * @param keys       identifiants des solutions, {@code width} par solution,
+     *                   éventuellement partagés (ils ne sont jamais modifiés)
+     * @param width      nombre de variables projetées
+     * @param offset     nombre de solutions à sauter ({@code OFFSET})
+     * @param dictionary dictionnaire servant au décodage
+     * @param countOnly  vrai pour une requête {@code COUNT}
+     * @param shape      nombre de patterns de la requête, pour les métriques
+     */
+    QueryResult(int[] keys, int width, int offset, TermDictionary dictionary, boolean countOnly, int shape) {
+        this.keys = keys;
+        this.width = width;
+        this.to = width == 0 ? 0 : keys.length / width;
+        this.from = Math.min(offset, to);
+        this.dictionary = dictionary;
+        this.countOnly = countOnly;
+        this.shape = shape;
+    }
+
+    /**
+     * Résultat du plan {@code plan} à partir de ses solutions {@code keys}.
+     * Pour {@code COUNT}, {@code LIMIT} et {@code OFFSET} s'appliquent à
+     * l'unique ligne du compte, qui peut donc disparaître.
+     */
+    static QueryResult of(QueryPlan plan, int[] keys, TermDictionary dictionary) {
+        if (plan.isCountOnly()) {
+            boolean countRow = plan.getOffset() == 0 && plan.getLimit() != 0;
+            return new QueryResult(countRow ? keys : Intersection.EMPTY, plan.getWidth(), 0, dictionary, countRow,
+                    plan.getShape());
+        }
+        return new QueryResult(keys, plan.getWidth(), (int) Math.min(plan.getOffset(), Integer.MAX_VALUE), dictionary,
+                false, plan.getShape());
+    }
+
+    /**
+     * Nombre de solutions, sans décodage.
+     */
+    public int count() {
+        return to - from;
+    }
+
+    public boolean isCountOnly() {
+        return countOnly;
+    }
+
+    /**
+     * Nombre d'identifiants par solution.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Identifiant de la solution n° {@code index} (première variable projetée).
+     */
+    public int keyAt(int index) {
+        return keyAt(index, 0);
+    }
+
+    /**
+     * Identifiant de la variable projetée n° {@code column} de la solution n°
+     * {@code index}.
+     */
+    public int keyAt(int index, int column) {
+        if (index < 0 || index >= count() || column < 0 || column >= width) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return keys[(from + index) * width + column];
+    }
+
+    @Override
+    public String get(int index) {
+        if (countOnly) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return Integer.toString(count());
+        }
+        if (width == 1) {
+            return dictionary.getValue(keyAt(index));
+        }
+        StringBuilder row = new StringBuilder();
+        for (int column = 0; column < width; column++) {
+            if (column > 0) {
+                row.append('\t');
+            }
+            row.append(dictionary.getValue(keyAt(index, column)));
+        }
+        return row.toString();
+    }
+
+    @Override
+    public int size() {
+        return countOnly ? 1 : count();
+    }
+
+    int getShape() {
+        return shape;
+    }
+}
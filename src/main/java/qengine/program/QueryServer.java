@@ -0,0 +1,276 @@
+package qengine.program;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.eclipse.rdf4j.query.MalformedQueryException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serveur HTTP local : les index sont chargés une fois, puis le serveur répond
+ * aux requêtes SPARQL jusqu'à son arrêt.
+ *
+ * <p>
+ * {@code GET /sparql?query=…} ou {@code POST /sparql} (la requête dans le
+ * corps) renvoie les solutions en {@code text/tab-separated-values}, une par
+ * ligne, décodées et envoyées au fil de l'eau (réponse découpée en morceaux).
+ * Les en-têtes donnent le nombre de solutions ({@code X-Result-Count}) et les
+ * temps d'attente et d'évaluation ({@code Server-Timing}, en millisecondes).
+ * Une requête mal formée ou non prise en charge reçoit une erreur 400, toute
+ * autre erreur d'évaluation une erreur 500.
+ * {@code GET /stats} renvoie les compteurs du serveur et les mesures du moteur
+ * ({@link QueryMetrics#toJson()}).
+ * </p>
+ *
+ * <p>
+ * {@code POST /update?delete=…&add=…} applique un lot de modifications
+ * ({@link Engine#applyUpdate(String, String)}), lu dans des fichiers N-Triples
+ * locaux au serveur, sans interrompre les requêtes : celles en cours finissent
+ * sur la version des données où elles ont commencé.
+ * </p>
+ *
+ * <p>
+ * Chaque échange est traité par un thread virtuel. Au plus
+ * {@code maxConcurrent} requêtes sont évaluées en même temps ; les suivantes
+ * attendent leur tour, mais au-delà de {@code queueLimit} en attente, une
+ * requête est refusée tout de suite (503). Une requête qui n'a pas fini dans
+ * son délai, attente comprise, reçoit une erreur 504 ; son évaluation, qui ne
+ * s'interrompt pas, garde sa place jusqu'à ce qu'elle se termine.
+ * </p>
+ */
+public class QueryServer implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Engine engine;
+    private final HttpServer server;
+    private final ExecutorService evaluations = Executors.newVirtualThreadPerTaskExecutor();
+    private final ExecutorService exchanges = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final int queueLimit;
+    private final long timeoutNanos;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    // Requêtes refusées (400) et évaluations en erreur (500)
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * @param port          port local d'écoute (0 pour un port libre)
+     * @param maxConcurrent nombre maximal de requêtes évaluées en même temps
+     * @param queueLimit    nombre maximal de requêtes en attente d'évaluation
+     * @param timeoutMillis délai d'une requête, attente comprise
+     */
+    public QueryServer(Engine engine, int port, int maxConcurrent, int queueLimit, long timeoutMillis) throws IOException {
+        this.engine = engine;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(this.maxConcurrent);
+        this.queueLimit = Math.max(0, queueLimit);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(exchanges);
+        server.createContext("/sparql", this::handleQuery);
+        server.createContext("/stats", this::handleStats);
+        server.createContext("/update", this::handleUpdate);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        exchanges.shutdownNow();
+        evaluations.shutdownNow();
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        long begin = System.nanoTime();
+        try (exchange) {
+            String query = readQuery(exchange);
+            if (query == null) {
+                invalid.incrementAndGet();
+                sendError(exchange, 400, "Expected GET ?query= or POST with the query as body");
+                return;
+            }
+
+            // Contrôle d'admission : une place libre, ou une attente si la file n'est pas pleine
+            boolean admitted = permits.tryAcquire();
+            if (!admitted) {
+                if (queued.incrementAndGet() > queueLimit) {
+                    queued.decrementAndGet();
+                    rejected.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendError(exchange, 503, "Too many queued queries");
+                    return;
+                }
+                try {
+                    admitted = permits.tryAcquire(timeoutNanos - (System.nanoTime() - begin), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+            long admittedAt = System.nanoTime();
+            if (!admitted) {
+                timedOut.incrementAndGet();
+                sendError(exchange, 504, "Timed out waiting for an evaluation slot");
+                return;
+            }
+
+            // La place n'est rendue qu'à la fin de l'évaluation, même après un 504
+            Future<QueryResult> evaluation = evaluations.submit(() -> {
+                try {
+                    return engine.processAQuery(query);
+                } finally {
+                    permits.release();
+                }
+            });
+
+            QueryResult result;
+            try {
+                result = evaluation.get(Math.max(0, timeoutNanos - (admittedAt - begin)), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException exception) {
+                timedOut.incrementAndGet();
+                sendError(exchange, 504, "Query timed out");
+                return;
+            } catch (ExecutionException exception) {
+                Throwable cause = exception.getCause();
+                // Seule une requête mal formée ou non prise en charge est la faute du client
+                if (cause instanceof MalformedQueryException || cause instanceof IllegalArgumentException) {
+                    invalid.incrementAndGet();
+                    sendError(exchange, 400, String.valueOf(cause.getMessage()));
+                } else {
+                    failed.incrementAndGet();
+                    System.err.println("Query evaluation failed: " + cause);
+                    sendError(exchange, 500, "Query evaluation failed");
+                }
+                return;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long evaluated = System.nanoTime();
+
+            exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+            exchange.getResponseHeaders().set("X-Result-Count", Integer.toString(result.count()));
+            exchange.getResponseHeaders().set("Server-Timing", String.format(Locale.ROOT,
+                    "queue;dur=%.3f, eval;dur=%.3f", (admittedAt - begin) / 1e6, (evaluated - admittedAt) / 1e6));
+            // Longueur inconnue : la réponse est envoyée par morceaux
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE)) {
+                for (String row : result) {
+                    body.write(row.getBytes(StandardCharsets.UTF_8));
+                    body.write('\n');
+                }
+            }
+            served.incrementAndGet();
+            latencies.record(System.nanoTime() - begin);
+        }
+    }
+
+    private static String readQuery(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            return body.isBlank() ? null : body;
+        }
+
+        return parameter(exchange, "query");
+    }
+
+    // Valeur décodée d'un paramètre de l'URL, ou null
+    private static String parameter(HttpExchange exchange, String name) {
+        String parameters = exchange.getRequestURI().getRawQuery();
+        if (parameters == null) {
+            return null;
+        }
+        for (String parameter : parameters.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return URLDecoder.decode(parameter.substring(name.length() + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void handleUpdate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String additionsFile = parameter(exchange, "add");
+            String deletionsFile = parameter(exchange, "delete");
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST") || (additionsFile == null && deletionsFile == null)) {
+                sendError(exchange, 400, "Expected POST /update?delete=<N-Triples file>&add=<N-Triples file>");
+                return;
+            }
+
+            long begin = System.nanoTime();
+            Delta delta;
+            try {
+                delta = engine.applyUpdate(additionsFile, deletionsFile);
+            } catch (IOException exception) {
+                sendError(exchange, 400, "Could not read update: " + exception.getMessage());
+                return;
+            }
+            updates.incrementAndGet();
+
+            byte[] bytes = String.format(Locale.ROOT, "{\"deltaAdded\": %d, \"deltaDeleted\": %d, \"durationMs\": %.3f}%n",
+                    delta.getAddedCount(), delta.getDeletedCount(), (System.nanoTime() - begin) / 1e6)
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String json = String.format(Locale.ROOT, "{\"served\": %d, \"rejected\": %d, \"timedOut\": %d,"
+                            + " \"invalid\": %d, \"failed\": %d, \"updates\": %d, \"inFlight\": %d, \"queued\": %d,"
+                            + " \"latencyNs\": {\"p50\": %d, \"p99\": %d, \"p999\": %d,"
+                            + " \"max\": %d},%n\"engine\": %s}%n",
+                    served.get(), rejected.get(), timedOut.get(), invalid.get(), failed.get(), updates.get(),
+                    maxConcurrent - permits.availablePermits(),
+                    queued.get(), latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99),
+                    latencies.getValueAtPercentile(99.9), latencies.getMax(), engine.getMetrics().toJson());
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
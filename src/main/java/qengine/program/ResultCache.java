@@ -0,0 +1,205 @@
+package qengine.program;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache des résultats encodés ({@code int[]}) des requêtes, indexé par
+ * l'ensemble trié des couples (prédicat, objet) de la requête : deux requêtes
+ * qui ne diffèrent que par l'ordre de leurs patterns partagent la même entrée.
+ *
+ * <p>
+ * Le cache est borné par un budget en octets, chaque entrée étant comptée à sa
+ * taille. Quand il faut de la place, les entrées les moins récemment utilisées
+ * sont évincées, mais seulement si la nouvelle entrée a été demandée plus
+ * souvent qu'elles (admission TinyLFU : les fréquences sont estimées par un
+ * {@link FrequencySketch}). Un résultat rare ne chasse donc pas un résultat
+ * fréquent.
+ * </p>
+ *
+ * <p>
+ * La clé comprend aussi la version des données ({@link MainRDFHandler#getVersion()}) :
+ * un résultat calculé sur une version n'est jamais servi pour une autre, même
+ * s'il est mis en cache après une mise à jour. Le cache peut être vidé avec
+ * {@link #clear()} quand les données changent, pour libérer la place.
+ * </p>
+ */
+public class ResultCache {
+    // Coût fixe approximatif d'une entrée : nœud de la table, clé, en-têtes des tableaux
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final long budget;
+    private final LinkedHashMap<Key, int[]> results = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch frequencies = new FrequencySketch(1 << 16);
+    private final CacheStatistics statistics = new CacheStatistics();
+    private long usedBytes = 0;
+
+    /**
+     * @param budget taille maximale, en octets, des résultats gardés
+     */
+    public ResultCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Clé canonique d'un plan : ses couples (prédicat, objet) triés, suivis de
+     * la version des données.
+     */
+    public static Key keyOf(QueryPlan plan, long version) {
+        List<QueryPlan.Step> steps = plan.getSteps();
+        long[] pairs = new long[steps.size() + 1];
+        for (int i = 0; i < steps.size(); i++) {
+            QueryPlan.Step step = steps.get(i);
+            pairs[i] = ((long) step.predicate() << 32) | (step.object() & 0xFFFFFFFFL);
+        }
+        Arrays.sort(pairs, 0, steps.size());
+        pairs[steps.size()] = version;
+        return new Key(pairs);
+    }
+
+    /**
+     * Renvoie le résultat en cache, ou {@code null}. Le tableau renvoyé est
+     * partagé et ne doit pas être modifié.
+     */
+    public synchronized int[] get(Key key) {
+        frequencies.increment(key.hashCode());
+        int[] result = results.get(key);
+        if (result == null) {
+            statistics.recordMiss();
+        } else {
+            statistics.recordHit();
+        }
+        return result;
+    }
+
+    /**
+     * Propose un résultat au cache ; il n'est gardé que s'il tient dans le
+     * budget et que la politique d'admission l'accepte.
+     */
+    public synchronized void put(Key key, int[] result) {
+        long size = sizeOf(key, result);
+        if (size > budget || results.containsKey(key)) {
+            return;
+        }
+
+        // On cherche, dans l'ordre LRU, les victimes qui libéreraient assez de place
+        int candidateFrequency = frequencies.frequency(key.hashCode());
+        long freed = 0;
+        int victims = 0;
+        for (Iterator<Map.Entry<Key, int[]>> iterator = results.entrySet().iterator();
+             usedBytes - freed + size > budget; victims++) {
+            Map.Entry<Key, int[]> victim = iterator.next();
+            if (frequencies.frequency(victim.getKey().hashCode()) >= candidateFrequency) {
+                // La victime est au moins aussi demandée : on refuse le candidat
+                return;
+            }
+            freed += sizeOf(victim.getKey(), victim.getValue());
+        }
+
+        Iterator<Map.Entry<Key, int[]>> iterator = results.entrySet().iterator();
+        for (int i = 0; i < victims; i++) {
+            iterator.next();
+            iterator.remove();
+            statistics.recordEviction();
+        }
+        usedBytes = usedBytes - freed + size;
+        results.put(key, result);
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static long sizeOf(Key key, int[] result) {
+        return ENTRY_OVERHEAD + (long) key.pairs.length * Long.BYTES + (long) result.length * Integer.BYTES;
+    }
+
+    /**
+     * Ensemble trié de couples (prédicat, objet), chacun sur un {@code long}.
+     */
+    public static final class Key {
+        private final long[] pairs;
+        private final int hash;
+
+        private Key(long[] pairs) {
+            this.pairs = pairs;
+            this.hash = Arrays.hashCode(pairs);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && hash == key.hash && Arrays.equals(pairs, key.pairs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Estimation approchée des fréquences d'accès (count-min sketch à quatre
+     * lignes). Tous les compteurs sont divisés par deux périodiquement, pour que
+     * les fréquences anciennes s'effacent.
+     */
+    static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97CB3127, 0x2E0C6B7F, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[] counters;
+        private final int mask;
+        private final int resetThreshold;
+        private int additions = 0;
+
+        FrequencySketch(int width) {
+            counters = new int[width * SEEDS.length];
+            mask = width - 1;
+            resetThreshold = width * 10;
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = indexOf(hash, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                }
+            }
+            if (++additions == resetThreshold) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int mixed = (hash ^ SEEDS[row]) * 0x9E3779B9;
+            mixed ^= mixed >>> 16;
+            return row * (mask + 1) + (mixed & mask);
+        }
+    }
+}
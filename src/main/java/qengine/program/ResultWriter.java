@@ -0,0 +1,178 @@
+package qengine.program;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Écriture au fil de l'eau des résultats des requêtes, à travers un tampon
+ * direct et un canal NIO : chaque requête est écrite dès que son résultat est
+ * disponible, et ses termes ne sont décodés qu'au moment d'être écrits.
+ *
+ * <p>
+ * Formats :
+ * </p>
+ * <ul>
+ * <li>{@link Format#CSV} : {@code query,results} puis une ligne par requête,
+ * la liste des résultats entre crochets ;</li>
+ * <li>{@link Format#GZIP} : le même CSV, compressé ;</li>
+ * <li>{@link Format#BINARY} : l'en-tête {@link #BINARY_MAGIC}, puis pour chaque
+ * requête son texte, son nombre de résultats et chacun d'eux ; les chaînes
+ * sont en UTF-8 précédées de leur longueur, les entiers gros-boutistes.</li>
+ * </ul>
+ */
+public class ResultWriter implements Closeable {
+    public enum Format {
+        CSV(".csv"),
+        GZIP(".csv.gz"),
+        BINARY(".bin");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public static Format parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final int BINARY_MAGIC = 0x51524553; // "QRES"
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path path;
+    private final Format format;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final QueryMetrics metrics;
+
+    private ResultWriter(Path path, Format format, WritableByteChannel channel, QueryMetrics metrics) {
+        this.path = path;
+        this.format = format;
+        this.channel = channel;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Crée {@code results<date><extension>} dans {@code directory} (créé au
+     * besoin). Si {@code metrics} est donné, le décodage de chaque résultat y est
+     * chronométré.
+     */
+    public static ResultWriter open(Path directory, Format format, QueryMetrics metrics) throws IOException {
+        Files.createDirectories(directory);
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy_MM_dd_HH:mm:ss");
+        Path path = directory.resolve("results" + dtf.format(LocalDateTime.now()) + format.extension);
+
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        WritableByteChannel channel = format == Format.GZIP
+                ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(file), BUFFER_SIZE))
+                : file;
+
+        ResultWriter writer = new ResultWriter(path, format, channel, metrics);
+        if (format == Format.BINARY) {
+            writer.ensure(Integer.BYTES);
+            writer.buffer.putInt(BINARY_MAGIC);
+        } else {
+            writer.put("query,results\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return writer;
+    }
+
+    /**
+     * Écrit une requête et ses résultats. Les appels sont sérialisés : les
+     * requêtes apparaissent dans l'ordre des appels.
+     */
+    public synchronized void write(String query, List<String> results) throws IOException {
+        long begin = System.nanoTime();
+
+        if (format == Format.BINARY) {
+            putString(query);
+            ensure(Integer.BYTES);
+            buffer.putInt(results.size());
+            for (String result : results) {
+                putString(result);
+            }
+        } else {
+            put('"');
+            put(query.getBytes(StandardCharsets.UTF_8));
+            put('"');
+            put(',');
+            put('"');
+            put('[');
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) {
+                    put(SEPARATOR);
+                }
+                put(String.valueOf(results.get(i)).getBytes(StandardCharsets.UTF_8));
+            }
+            put(']');
+            put('"');
+            put('\n');
+        }
+
+        // Les termes d'un QueryResult ne sont décodés qu'ici
+        if (metrics != null && results instanceof QueryResult result) {
+            metrics.record(QueryMetrics.Stage.DECODE, result.getShape(), System.nanoTime() - begin);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(Integer.BYTES);
+        buffer.putInt(bytes.length);
+        put(bytes);
+    }
+
+    private void put(char ascii) throws IOException {
+        ensure(1);
+        buffer.put((byte) ascii);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        for (int written = 0; written < bytes.length; ) {
+            ensure(1);
+            int count = Math.min(bytes.length - written, buffer.remaining());
+            buffer.put(bytes, written, count);
+            written += count;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
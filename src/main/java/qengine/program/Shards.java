@@ -0,0 +1,121 @@
+package qengine.program;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Index POS partitionné par sujet : chaque triple va dans la partition donnée
+ * par un haché de son sujet, qui a son propre {@link Store}.
+ *
+ * <p>
+ * Les sujets d'une partition n'apparaissent dans aucune autre : une requête en
+ * étoile peut donc être évaluée sur chaque partition séparément, sans rien
+ * partager, et ses résultats sont la concaténation de ceux des partitions. Les
+ * évaluations par partition tournent dans un pool de threads dédié, distinct du
+ * pool commun où sont évaluées les requêtes, pour qu'une seule grosse requête
+ * puisse occuper tous les cœurs. Ce pool est fourni à la construction : les
+ * partitions reconstruites à chaque fusion du delta gardent le même.
+ * </p>
+ */
+public class Shards {
+    private final Store[] posStores;
+    private final ForkJoinPool pool;
+
+    private Shards(Store[] posStores, ForkJoinPool pool) {
+        this.posStores = posStores;
+        this.pool = pool;
+    }
+
+    /**
+     * Pool adapté à {@code count} partitions.
+     */
+    public static ForkJoinPool newPool(int count) {
+        return new ForkJoinPool(Math.min(count, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Répartit les triples en {@code count} partitions et construit leurs index
+     * en parallèle ; les évaluations par partition tourneront dans {@code pool}.
+     */
+    public static Shards build(TripleBuffer triples, int count, boolean compressLeaves, ForkJoinPool pool) {
+        int[] data = triples.array();
+        int size = triples.size();
+
+        // Premier passage pour dimensionner les tampons
+        int[] sizes = new int[count];
+        for (int i = 0; i < size; i++) {
+            sizes[shardOf(data[3 * i], count)]++;
+        }
+        TripleBuffer[] partitions = new TripleBuffer[count];
+        for (int shard = 0; shard < count; shard++) {
+            partitions[shard] = new TripleBuffer(sizes[shard]);
+        }
+        for (int i = 0; i < size; i++) {
+            int position = 3 * i;
+            partitions[shardOf(data[position], count)].add(data[position], data[position + 1], data[position + 2]);
+        }
+
+        Store[] posStores = new Store[count];
+        IntStream.range(0, count).parallel().forEach(shard -> {
+            Store store = new Store();
+            store.build(partitions[shard], Permutation.POS);
+            if (compressLeaves) {
+                store.compress();
+            }
+            posStores[shard] = store;
+        });
+        return new Shards(posStores, pool);
+    }
+
+    /**
+     * Partition du sujet {@code subject}.
+     */
+    public static int shardOf(int subject, int count) {
+        int hash = subject * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), count);
+    }
+
+    /**
+     * Nombre de partitions.
+     */
+    public int size() {
+        return posStores.length;
+    }
+
+    public Store getPosStore(int shard) {
+        return posStores[shard];
+    }
+
+    /**
+     * Exécute {@code task} pour chaque partition dans le pool dédié, et renvoie
+     * les résultats dans l'ordre des partitions.
+     */
+    public <T> List<T> map(IntFunction<T> task) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(posStores.length);
+        for (int shard = 0; shard < posStores.length; shard++) {
+            int current = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> task.apply(current), pool));
+        }
+
+        List<T> results = new ArrayList<>(posStores.length);
+        for (CompletableFuture<T> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Taille en octets du dernier niveau des index de toutes les partitions.
+     */
+    public long leafByteSize() {
+        long bytes = 0;
+        for (Store store : posStores) {
+            bytes += store.leafByteSize();
+        }
+        return bytes;
+    }
+}
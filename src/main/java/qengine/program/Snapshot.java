@@ -0,0 +1,211 @@
+package qengine.program;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Instantané binaire du dictionnaire et des six index, écrit une fois après le
+ * chargement puis relu par projection mémoire ({@link FileChannel#map}) au
+ * démarrage suivant, sans repasser par le parseur N-Triples.
+ *
+ * <p>
+ * Les pages d'octets du {@link TermDictionary} sont utilisées directement depuis
+ * les pages projetées : les termes ne sont lus sur disque (ou dans le cache du
+ * système, partagé entre processus) qu'au moment d'être décodés. Les tableaux
+ * des index et des tables de hachage sont recopiés d'un bloc depuis la
+ * projection.
+ * </p>
+ *
+ * <p>
+ * Format (entiers gros-boutistes) : l'en-tête {@link #MAGIC}, la version, le
+ * nombre de triples, le dictionnaire puis les six index dans l'ordre SPO, SOP,
+ * PSO, POS, OSP, OPS. Chaque index commence par un indicateur (0 s'il n'était
+ * pas construit, et n'a alors pas de données, 1 ou 2 selon que son dernier
+ * niveau est en clair ou compressé) ; chaque tableau est précédé de sa
+ * longueur.
+ * </p>
+ */
+public final class Snapshot {
+    private static final long MAGIC = 0x514E47534E415053L; // "QNGSNAPS"
+    private static final int VERSION = 3;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Écrit l'instantané dans un fichier temporaire, puis le renomme : un
+     * instantané à moitié écrit n'est jamais relu.
+     */
+    public static void write(MainRDFHandler rdfHandler, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(channel);
+            writer.writeLong(MAGIC);
+            writer.writeInt(VERSION);
+            writer.writeInt(rdfHandler.getTriplets());
+
+            rdfHandler.getDictionary().writeTo(writer);
+            for (Store store : rdfHandler.getStores()) {
+                store.writeTo(writer);
+            }
+            writer.flush();
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static MainRDFHandler load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+            if (reader.readLong() != MAGIC) {
+                throw new IOException("Not a qengine snapshot: " + file);
+            }
+            int version = reader.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            int triplets = reader.readInt();
+
+            TermDictionary dictionary = TermDictionary.readFrom(reader);
+            Store[] stores = new Store[6];
+            for (int i = 0; i < stores.length; i++) {
+                stores[i] = Store.readFrom(reader);
+            }
+
+            // La projection reste valide après la fermeture du canal
+            return new MainRDFHandler(dictionary, stores, triplets);
+        }
+    }
+
+    /**
+     * Écriture séquentielle à travers un tampon direct.
+     */
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void writeIntArray(int[] values, int length) throws IOException {
+            writeInt(length);
+            for (int written = 0; written < length; ) {
+                ensure(Integer.BYTES);
+                int count = Math.min(length - written, buffer.remaining() / Integer.BYTES);
+                IntBuffer view = buffer.asIntBuffer();
+                view.put(values, written, count);
+                buffer.position(buffer.position() + count * Integer.BYTES);
+                written += count;
+            }
+        }
+
+        void writeLongArray(long[] values, int length) throws IOException {
+            writeInt(length);
+            for (int written = 0; written < length; ) {
+                ensure(Long.BYTES);
+                int count = Math.min(length - written, buffer.remaining() / Long.BYTES);
+                LongBuffer view = buffer.asLongBuffer();
+                view.put(values, written, count);
+                buffer.position(buffer.position() + count * Long.BYTES);
+                written += count;
+            }
+        }
+
+        /**
+         * Écrit les octets de {@code bytes[position, limit)}, précédés de leur
+         * nombre.
+         */
+        void writeBytes(ByteBuffer bytes) throws IOException {
+            writeInt(bytes.remaining());
+            flush();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Lecture séquentielle : chaque section est projetée en mémoire.
+     */
+    static final class Reader {
+        private final FileChannel channel;
+        private long position = 0;
+
+        private Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int readInt() throws IOException {
+            return map(Integer.BYTES).getInt();
+        }
+
+        long readLong() throws IOException {
+            return map(Long.BYTES).getLong();
+        }
+
+        int[] readIntArray() throws IOException {
+            int[] values = new int[readInt()];
+            map((long) values.length * Integer.BYTES).asIntBuffer().get(values);
+            return values;
+        }
+
+        long[] readLongArray() throws IOException {
+            long[] values = new long[readInt()];
+            map((long) values.length * Long.BYTES).asLongBuffer().get(values);
+            return values;
+        }
+
+        /**
+         * Renvoie les octets écrits par {@link Writer#writeBytes(ByteBuffer)} sous
+         * forme de projection en lecture seule, sans les copier.
+         */
+        MappedByteBuffer readBytes() throws IOException {
+            return map(readInt());
+        }
+
+        private MappedByteBuffer map(long length) throws IOException {
+            if (position + length > channel.size()) {
+                throw new IOException("Truncated snapshot");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return mapped;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package qengine.program;
+
+import java.util.Arrays;
+
+/**
+ * Statistiques de cardinalité calculées à partir de l'index POS une fois
+ * construit.
+ *
+ * <p>
+ * Pour chaque prédicat on retient le nombre de triples, de sujets distincts et
+ * d'objets distincts. Le nombre de triples d'un couple (prédicat, objet) est lu
+ * directement dans les offsets de l'index POS, il est donc exact.
+ * </p>
+ */
+public class Statistics {
+    private final Store posStore;
+    private final int[] predicates;
+    private final int[] triples;
+    private final int[] distinctSubjects;
+    private final int[] distinctObjects;
+    private final int subjectCount;
+
+    /**
+     * @param maxKey le plus grand identifiant du dictionnaire
+     */
+    public Statistics(Store posStore, int maxKey) {
+        this.posStore = posStore;
+
+        int predicateCount = posStore.distinctFirstCount();
+        predicates = new int[predicateCount];
+        triples = new int[predicateCount];
+        distinctSubjects = new int[predicateCount];
+        distinctObjects = new int[predicateCount];
+
+        // Pour compter les sujets distincts, on marque chaque sujet avec le
+        // numéro du dernier prédicat où on l'a vu
+        int[] lastSeen = new int[maxKey + 1];
+        int subjects = 0;
+
+        // Les premières clés de POS sont déjà triées
+        for (int i = 0; i < predicateCount; i++) {
+            int predicate = posStore.firstKeyAt(i);
+            predicates[i] = predicate;
+            triples[i] = posStore.count(predicate);
+            distinctObjects[i] = posStore.distinctSecondCount(predicate);
+
+            for (int secondIndex = posStore.secondsFrom(i); secondIndex < posStore.secondsTo(i); secondIndex++) {
+                PostingList.Cursor cursor = posStore.listAt(secondIndex).cursor();
+                for (int subject = cursor.current(); subject != PostingList.Cursor.END; subject = cursor.advance()) {
+                    if (lastSeen[subject] == 0) {
+                        subjects++;
+                    }
+                    if (lastSeen[subject] != i + 1) {
+                        lastSeen[subject] = i + 1;
+                        distinctSubjects[i]++;
+                    }
+                }
+            }
+        }
+
+        subjectCount = subjects;
+    }
+
+    public int getPredicateCount(int predicate) {
+        int index = Arrays.binarySearch(predicates, predicate);
+        return index < 0 ? 0 : triples[index];
+    }
+
+    public int getDistinctSubjects(int predicate) {
+        int index = Arrays.binarySearch(predicates, predicate);
+        return index < 0 ? 0 : distinctSubjects[index];
+    }
+
+    public int getDistinctObjects(int predicate) {
+        int index = Arrays.binarySearch(predicates, predicate);
+        return index < 0 ? 0 : distinctObjects[index];
+    }
+
+    /**
+     * Nombre de triples ayant ce prédicat et cet objet.
+     */
+    public int getPatternCount(int predicate, int object) {
+        return posStore.count(predicate, object);
+    }
+
+    /**
+     * Nombre de sujets distincts dans toutes les données.
+     */
+    public int getSubjectCount() {
+        return subjectCount;
+    }
+
+    /**
+     * Probabilité qu'un sujet pris au hasard vérifie le pattern (prédicat, objet),
+     * utilisée pour estimer la taille d'une intersection en supposant les patterns
+     * indépendants.
+     */
+    public double getSelectivity(int predicate, int object) {
+        return subjectCount == 0 ? 0 : (double) getPatternCount(predicate, object) / subjectCount;
+    }
+}
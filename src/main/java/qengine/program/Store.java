@@ -1,26 +1,423 @@
 package qengine.program;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.util.Arrays;
 
-public class Store extends HashMap<Integer, HashMap<Integer, List<Integer>>> {
+/**
+ * Index d'une permutation de triples (par exemple POS), stocké au format CSR.
+ *
+ * <p>
+ * Pendant le chargement, les triples sont simplement ajoutés dans un tampon
+ * d'entiers. Une fois le chargement terminé, {@link #build()} trie ce tampon et
+ * le compacte en cinq tableaux primitifs :
+ * </p>
+ * <ul>
+ * <li>{@code firstKeys} : les premières clés distinctes, triées ;</li>
+ * <li>{@code firstOffsets} : pour chaque première clé, le début de ses secondes
+ * clés dans {@code secondKeys} ;</li>
+ * <li>{@code secondKeys} : les secondes clés, triées à l'intérieur de chaque
+ * bloc ;</li>
+ * <li>{@code secondOffsets} : pour chaque seconde clé, le début de ses valeurs
+ * dans {@code values} ;</li>
+ * <li>{@code values} : les troisièmes clés, triées et sans doublons à
+ * l'intérieur de chaque bloc.</li>
+ * </ul>
+ * <p>
+ * Chaque triple ne coûte alors plus qu'un {@code int} (plus la part amortie des
+ * clés), et les recherches se font par dichotomie.
+ * </p>
+ * <p>
+ * {@link #compress()} remplace ensuite {@code values} par des listes
+ * compressées par blocs ({@link CompressedLists}).
+ * </p>
+ */
+public class Store {
+    private static final int INITIAL_CAPACITY = 3 * 1024;
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    // Tampon de chargement : les triples à la suite (clé 1, clé 2, clé 3)
+    private int[] pending = new int[INITIAL_CAPACITY];
+    private int pendingSize = 0;
+
+    private int[] firstKeys = new int[0];
+    private int[] firstOffsets = new int[]{0};
+    private int[] secondKeys = new int[0];
+    private int[] secondOffsets = new int[]{0};
+    private int[] values = new int[0];
+    // Remplace values une fois l'index compressé
+    private CompressedLists compressed = null;
+
+    private boolean built = false;
 
     public Store() {
-        super();
     }
 
-    public void update(Integer key1, Integer key2, Integer key3) {
-        this.computeIfAbsent(key1, key -> new HashMap<>()).computeIfAbsent(key2, key -> new ArrayList<>()).add(key3);
+    public void update(int key1, int key2, int key3) {
+        if (built) {
+            throw new IllegalStateException("Store is read-only once built");
+        }
+
+        if (pendingSize + 3 > pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+
+        pending[pendingSize++] = key1;
+        pending[pendingSize++] = key2;
+        pending[pendingSize++] = key3;
+    }
+
+    /**
+     * Construit l'index compact à partir des triples reçus par
+     * {@link #update(int, int, int)}. Les doublons sont éliminés.
+     * Un appel supplémentaire n'a aucun effet.
+     */
+    public void build() {
+        if (built) {
+            return;
+        }
+
+        int[] triples = pending;
+        pending = null;
+        build(triples, pendingSize / 3, 0, 1, 2);
+    }
+
+    /**
+     * Construit l'index directement depuis un tampon de triples partagé, dans
+     * l'ordre de la permutation donnée, sans passer par
+     * {@link #update(int, int, int)}. Le tampon n'est pas modifié, plusieurs
+     * index peuvent donc être construits en parallèle depuis le même tampon.
+     */
+    public void build(TripleBuffer triples, Permutation permutation) {
+        if (built) {
+            return;
+        }
+
+        pending = null;
+        build(triples.array(), triples.size(), permutation.getFirst(), permutation.getSecond(), permutation.getThird());
+    }
+
+    private void build(int[] triples, int count, int firstPosition, int secondPosition, int thirdPosition) {
+        int end = 3 * count;
+
+        int maxFirst = 0;
+        for (int i = 0; i < end; i += 3) {
+            maxFirst = Math.max(maxFirst, triples[i + firstPosition]);
+        }
+
+        // Couples (clé 2, clé 3) encodés sur un long, regroupés par première clé :
+        // le groupe n° g, de clé groupKeys[g], occupe pairs[groupStarts[g], groupStarts[g + 1])
+        long[] pairs = new long[count];
+        int[] groupKeys;
+        int[] groupStarts;
+        if (maxFirst <= 4L * count + 1024) {
+            // Tri par dénombrement sur la première clé
+            int[] buckets = new int[maxFirst + 2];
+            for (int i = 0; i < end; i += 3) {
+                buckets[triples[i + firstPosition] + 1]++;
+            }
+            int groups = 0;
+            for (int i = 1; i < buckets.length; i++) {
+                groups += buckets[i] > 0 ? 1 : 0;
+                buckets[i] += buckets[i - 1];
+            }
+
+            int[] cursor = Arrays.copyOf(buckets, buckets.length);
+            for (int i = 0; i < end; i += 3) {
+                pairs[cursor[triples[i + firstPosition]]++] = pairOf(triples, i, secondPosition, thirdPosition);
+            }
+            groupKeys = new int[groups];
+            groupStarts = new int[groups + 1];
+            int group = 0;
+            for (int key = 0; key <= maxFirst; key++) {
+                if (buckets[key + 1] > buckets[key]) {
+                    groupKeys[group] = key;
+                    groupStarts[group++] = buckets[key];
+                }
+            }
+            groupStarts[groups] = count;
+        } else {
+            // Clés trop dispersées (petit index, un delta par exemple) : le
+            // tableau de dénombrement coûterait plus que le tri des triples
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) triples[3 * i + firstPosition] << 32) | i;
+            }
+            Arrays.sort(order);
+            groupKeys = new int[count];
+            groupStarts = new int[count + 1];
+            int groups = 0;
+            for (int i = 0; i < count; i++) {
+                int key = (int) (order[i] >>> 32);
+                if (groups == 0 || groupKeys[groups - 1] != key) {
+                    groupKeys[groups] = key;
+                    groupStarts[groups++] = i;
+                }
+                pairs[i] = pairOf(triples, 3 * (int) order[i], secondPosition, thirdPosition);
+            }
+            groupKeys = Arrays.copyOf(groupKeys, groups);
+            groupStarts = Arrays.copyOf(groupStarts, groups + 1);
+            groupStarts[groups] = count;
+        }
+
+        // Dans chaque groupe, on trie les couples
+        int distinctFirst = groupKeys.length;
+        for (int group = 0; group < distinctFirst; group++) {
+            int from = groupStarts[group];
+            int to = groupStarts[group + 1];
+            // Les très gros blocs (rdf:type par exemple) sont triés en parallèle
+            if (to - from > PARALLEL_SORT_THRESHOLD) {
+                Arrays.parallelSort(pairs, from, to);
+            } else {
+                Arrays.sort(pairs, from, to);
+            }
+        }
+
+        int[] newFirstKeys = new int[distinctFirst];
+        int[] newFirstOffsets = new int[distinctFirst + 1];
+        int[] newSecondKeys = new int[count];
+        int[] newSecondOffsets = new int[count + 1];
+        int[] newValues = new int[count];
+        int firstIndex = 0;
+        int secondIndex = 0;
+        int valueIndex = 0;
+
+        for (int group = 0; group < distinctFirst; group++) {
+            int from = groupStarts[group];
+            int to = groupStarts[group + 1];
+
+            newFirstKeys[firstIndex] = groupKeys[group];
+            newFirstOffsets[firstIndex] = secondIndex;
+            firstIndex++;
+
+            long previous = -1L;
+            for (int i = from; i < to; i++) {
+                long pair = pairs[i];
+                if (pair == previous) {
+                    continue;
+                }
+
+                int second = (int) (pair >>> 32);
+                if (i == from || second != (int) (previous >>> 32)) {
+                    newSecondKeys[secondIndex] = second;
+                    newSecondOffsets[secondIndex] = valueIndex;
+                    secondIndex++;
+                }
+
+                newValues[valueIndex++] = (int) pair;
+                previous = pair;
+            }
+        }
+        newFirstOffsets[firstIndex] = secondIndex;
+        newSecondOffsets[secondIndex] = valueIndex;
+
+        firstKeys = newFirstKeys;
+        firstOffsets = newFirstOffsets;
+        secondKeys = Arrays.copyOf(newSecondKeys, secondIndex);
+        secondOffsets = Arrays.copyOf(newSecondOffsets, secondIndex + 1);
+        values = Arrays.copyOf(newValues, valueIndex);
+        built = true;
+    }
+
+    private static long pairOf(int[] triples, int position, int secondPosition, int thirdPosition) {
+        return ((long) triples[position + secondPosition] << 32) | (triples[position + thirdPosition] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Compresse le dernier niveau de l'index construit : les listes de
+     * troisièmes clés sont encodées par blocs et le tableau {@code values} est
+     * libéré. Sans effet si l'index n'est pas construit ou l'est déjà.
+     */
+    public synchronized void compress() {
+        if (!built || compressed != null) {
+            return;
+        }
+        compressed = CompressedLists.pack(values, secondOffsets);
+        values = null;
+    }
+
+    public boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * Nombre d'octets occupés par le dernier niveau (les troisièmes clés).
+     */
+    public long leafByteSize() {
+        return compressed != null ? compressed.byteSize() : (long) values.length * Integer.BYTES;
+    }
+
+    /**
+     * Écrit l'index construit dans un {@link Snapshot}.
+     */
+    void writeTo(Snapshot.Writer writer) throws IOException {
+        // 0 : non construit, 1 : valeurs en clair, 2 : valeurs compressées
+        writer.writeInt(!built ? 0 : compressed == null ? 1 : 2);
+        if (!built) {
+            return;
+        }
+        writer.writeIntArray(firstKeys, firstKeys.length);
+        writer.writeIntArray(firstOffsets, firstOffsets.length);
+        writer.writeIntArray(secondKeys, secondKeys.length);
+        writer.writeIntArray(secondOffsets, secondOffsets.length);
+        if (compressed == null) {
+            writer.writeIntArray(values, values.length);
+        } else {
+            compressed.writeTo(writer);
+        }
+    }
+
+    /**
+     * Relit un index écrit par {@link #writeTo(Snapshot.Writer)} ; il est
+     * directement construit, sauf s'il ne l'était pas au moment de l'écriture.
+     */
+    static Store readFrom(Snapshot.Reader reader) throws IOException {
+        Store store = new Store();
+        int format = reader.readInt();
+        if (format == 0) {
+            return store;
+        }
+
+        store.pending = null;
+        store.firstKeys = reader.readIntArray();
+        store.firstOffsets = reader.readIntArray();
+        store.secondKeys = reader.readIntArray();
+        store.secondOffsets = reader.readIntArray();
+        if (format == 1) {
+            store.values = reader.readIntArray();
+        } else {
+            store.values = null;
+            store.compressed = CompressedLists.readFrom(reader);
+        }
+        store.built = true;
+        return store;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Renvoie les troisièmes clés associées au couple ({@code first},
+     * {@code second}), triées par ordre croissant. La liste renvoyée est une vue
+     * en lecture seule sur l'index (compressé ou non) : aucune copie n'est
+     * faite.
+     */
+    public PostingList twoValuesFilter(int first, int second) {
+        int secondIndex = indexOfSecond(first, second);
+        if (secondIndex < 0) {
+            return PostingList.EMPTY;
+        }
+
+        return listAt(secondIndex);
+    }
+
+    /**
+     * Nombre de triples (distincts) contenus dans l'index construit.
+     */
+    public int size() {
+        return secondOffsets[secondOffsets.length - 1];
+    }
+
+    /**
+     * Nombre de premières clés distinctes.
+     */
+    public int distinctFirstCount() {
+        return firstKeys.length;
+    }
+
+    public int firstKeyAt(int index) {
+        return firstKeys[index];
+    }
+
+    /**
+     * Nombre de triples dont la première clé est {@code first}.
+     */
+    public int count(int first) {
+        int firstIndex = Arrays.binarySearch(firstKeys, first);
+        if (firstIndex < 0) {
+            return 0;
+        }
+        return secondOffsets[firstOffsets[firstIndex + 1]] - secondOffsets[firstOffsets[firstIndex]];
+    }
+
+    /**
+     * Nombre de secondes clés distinctes associées à {@code first}.
+     */
+    public int distinctSecondCount(int first) {
+        int firstIndex = Arrays.binarySearch(firstKeys, first);
+        if (firstIndex < 0) {
+            return 0;
+        }
+        return firstOffsets[firstIndex + 1] - firstOffsets[firstIndex];
+    }
+
+    /**
+     * Nombre de triples commençant par ({@code first}, {@code second}).
+     */
+    public int count(int first, int second) {
+        int secondIndex = indexOfSecond(first, second);
+        if (secondIndex < 0) {
+            return 0;
+        }
+        return secondOffsets[secondIndex + 1] - secondOffsets[secondIndex];
+    }
+
+    /**
+     * Ajoute au tampon tous les triples de l'index, remis dans l'ordre (sujet,
+     * prédicat, objet) ; {@code permutation} est celle de cet index.
+     */
+    public void appendTriples(TripleBuffer triples, Permutation permutation) {
+        int[] triple = new int[3];
+        for (int firstIndex = 0; firstIndex < firstKeys.length; firstIndex++) {
+            triple[permutation.getFirst()] = firstKeys[firstIndex];
+            for (int secondIndex = firstOffsets[firstIndex]; secondIndex < firstOffsets[firstIndex + 1]; secondIndex++) {
+                triple[permutation.getSecond()] = secondKeys[secondIndex];
+                PostingList.Cursor cursor = listAt(secondIndex).cursor();
+                for (int value = cursor.current(); value != PostingList.Cursor.END; value = cursor.advance()) {
+                    triple[permutation.getThird()] = value;
+                    triples.add(triple[0], triple[1], triple[2]);
+                }
+            }
+        }
+    }
+
+    // Indices, dans secondKeys, des secondes clés de la première clé n° firstIndex
+    int secondsFrom(int firstIndex) {
+        return firstOffsets[firstIndex];
+    }
+
+    int secondsTo(int firstIndex) {
+        return firstOffsets[firstIndex + 1];
+    }
+
+    // Indice de first dans firstKeys, ou -1
+    int indexOfFirst(int first) {
+        int firstIndex = Arrays.binarySearch(firstKeys, first);
+        return firstIndex < 0 ? -1 : firstIndex;
+    }
+
+    // Indice de second parmi les secondes clés de la première clé n° firstIndex, ou -1
+    int secondIndexOf(int firstIndex, int second) {
+        int secondIndex = Arrays.binarySearch(secondKeys, firstOffsets[firstIndex], firstOffsets[firstIndex + 1], second);
+        return secondIndex < 0 ? -1 : secondIndex;
+    }
+
+    int secondKeyAt(int secondIndex) {
+        return secondKeys[secondIndex];
+    }
+
+    // Troisièmes clés de la seconde clé n° secondIndex
+    PostingList listAt(int secondIndex) {
+        int from = secondOffsets[secondIndex];
+        int to = secondOffsets[secondIndex + 1];
+        if (compressed != null) {
+            return compressed.list(secondIndex, from, to);
+        }
+        return new ArrayPostingList(values, from, to);
     }
 
-    public List<Integer> twoValuesFilter(Integer first, Integer second) {
-        return this.entrySet().stream()
-                .filter(entry -> entry.getKey().equals(first))
-                .flatMap(entry -> entry.getValue().entrySet().stream())
-                .filter(innerEntry -> innerEntry.getKey().equals(second))
-                .flatMap(innerEntry -> innerEntry.getValue().stream())
-                .collect(Collectors.toList());
+    private int indexOfSecond(int first, int second) {
+        int firstIndex = indexOfFirst(first);
+        return firstIndex < 0 ? -1 : secondIndexOf(firstIndex, second);
     }
 }
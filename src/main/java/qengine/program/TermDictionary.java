@@ -0,0 +1,357 @@
+package qengine.program;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionnaire compact des termes RDF (IRI et littéraux), identifiants à partir
+ * de 1.
+ *
+ * <p>
+ * Les termes ne sont pas gardés sous forme de {@code String} : ils sont stockés
+ * en UTF-8 dans de grandes pages allouées hors du tas. Les IRI sont coupées après
+ * leur dernier {@code /} ou {@code #} ; le préfixe (par exemple
+ * {@code http://db.uwaterloo.ca/~galuc/wsdbm/}) est rangé une seule fois dans
+ * une table de préfixes, qui est elle-même un {@code TermDictionary}, et seul le
+ * suffixe est stocké pour chaque terme.
+ * </p>
+ *
+ * <p>
+ * La correspondance terme → identifiant est une table de hachage à adressage
+ * ouvert sur les octets du terme. Les chaînes ne sont reconstruites que par
+ * {@link #getValue(int)}, c'est-à-dire au moment d'exporter les résultats.
+ * </p>
+ *
+ * <p>
+ * Comme pour {@link Dictionary}, les insertions se font sous verrou et les
+ * lectures sans verrou : un identifiant n'est publié dans la table qu'une fois
+ * toutes ses données écrites.
+ * </p>
+ */
+public class TermDictionary {
+    public static final int ABSENT = Dictionary.ABSENT;
+
+    private static final int PAGE_SIZE = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // Table des préfixes, null pour la table des préfixes elle-même
+    private final TermDictionary prefixes;
+
+    // Pages hors tas contenant les octets des suffixes
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private int pageCount = 0;
+
+    // Par identifiant (la case 0 n'est pas utilisée) : page et position, longueur,
+    // préfixe et empreinte du terme
+    private long[] addresses = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] prefixIds = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    // Table de hachage : identifiant du terme, ou 0 pour une case vide
+    private volatile int[] slots = new int[INITIAL_CAPACITY * 2];
+    private volatile int size = 0;
+
+    public TermDictionary() {
+        this(new TermDictionary((TermDictionary) null));
+    }
+
+    private TermDictionary(TermDictionary prefixes) {
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Renvoie l'identifiant du terme, en lui en attribuant un nouveau s'il n'est
+     * pas encore dans le dictionnaire.
+     */
+    public int getKeyIfExists(String term) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        return getKeyIfExists(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Comme {@link #getKeyIfExists(String)}, pour un terme déjà encodé en UTF-8
+     * dans {@code buffer[offset, offset + length)}.
+     */
+    public int getKeyIfExists(byte[] buffer, int offset, int length) {
+        int key = lookup(buffer, offset, length);
+        if (key != ABSENT) {
+            return key;
+        }
+
+        int split = prefixLength(buffer, offset, length);
+        int prefixId = split == 0 ? 0 : prefixes.getKeyIfExists(buffer, offset, split);
+        return insert(prefixId, buffer, offset + split, length - split);
+    }
+
+    /**
+     * Renvoie l'identifiant du terme, ou {@link #ABSENT} s'il n'est pas dans le
+     * dictionnaire. N'insère jamais rien.
+     */
+    public int lookup(String term) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        return lookup(bytes, 0, bytes.length);
+    }
+
+    public int lookup(byte[] buffer, int offset, int length) {
+        int split = prefixLength(buffer, offset, length);
+        int prefixId = 0;
+        if (split > 0) {
+            prefixId = prefixes.lookup(buffer, offset, split);
+            if (prefixId == ABSENT) {
+                return ABSENT;
+            }
+        }
+
+        int suffixOffset = offset + split;
+        int suffixLength = length - split;
+        int hash = hash(prefixId, buffer, suffixOffset, suffixLength);
+
+        int[] table = slots;
+        int mask = table.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            int key = (int) SLOTS.getAcquire(table, index);
+            if (key == 0) {
+                return ABSENT;
+            }
+            if (hashes[key] == hash && prefixIdOf(key) == prefixId && suffixEquals(key, buffer, suffixOffset, suffixLength)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Reconstruit la chaîne du terme, ou {@code null} si l'identifiant est
+     * inconnu.
+     */
+    public String getValue(int key) {
+        if (key <= 0 || key > size) {
+            return null;
+        }
+
+        int prefixId = prefixIdOf(key);
+        int prefixLength = prefixId == 0 ? 0 : prefixes.lengths[prefixId];
+        byte[] bytes = new byte[prefixLength + lengths[key]];
+        if (prefixId != 0) {
+            prefixes.copySuffix(prefixId, bytes, 0);
+        }
+        copySuffix(key, bytes, prefixLength);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Nombre de termes dans le dictionnaire.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Nombre d'octets occupés par les termes et les préfixes, hors tables.
+     */
+    public long byteSize() {
+        long bytes = 0;
+        for (int i = 0; i < pageCount; i++) {
+            bytes += pages[i].position();
+        }
+        return prefixes == null ? bytes : bytes + prefixes.byteSize();
+    }
+
+    /**
+     * Écrit le dictionnaire (et sa table de préfixes) dans un {@link Snapshot}.
+     */
+    synchronized void writeTo(Snapshot.Writer writer) throws IOException {
+        writer.writeInt(prefixes == null ? 0 : 1);
+        if (prefixes != null) {
+            prefixes.writeTo(writer);
+        }
+
+        writer.writeInt(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            writer.writeBytes(pages[i].duplicate().flip());
+        }
+
+        writer.writeLongArray(addresses, size + 1);
+        writer.writeIntArray(lengths, size + 1);
+        writer.writeIntArray(prefixIds, size + 1);
+        writer.writeIntArray(hashes, size + 1);
+        writer.writeIntArray(slots, slots.length);
+    }
+
+    /**
+     * Relit un dictionnaire écrit par {@link #writeTo(Snapshot.Writer)}. Les pages
+     * d'octets restent celles de la projection mémoire ; les nouveaux termes
+     * éventuels iront dans de nouvelles pages.
+     */
+    static TermDictionary readFrom(Snapshot.Reader reader) throws IOException {
+        TermDictionary prefixes = reader.readInt() == 0 ? null : readFrom(reader);
+        TermDictionary dictionary = new TermDictionary(prefixes);
+
+        int pageCount = reader.readInt();
+        dictionary.pages = new ByteBuffer[Math.max(16, pageCount)];
+        for (int i = 0; i < pageCount; i++) {
+            ByteBuffer page = reader.readBytes();
+            page.position(page.limit());
+            dictionary.pages[i] = page;
+        }
+        dictionary.pageCount = pageCount;
+
+        dictionary.addresses = reader.readLongArray();
+        dictionary.lengths = reader.readIntArray();
+        dictionary.prefixIds = reader.readIntArray();
+        dictionary.hashes = reader.readIntArray();
+        dictionary.slots = reader.readIntArray();
+        dictionary.size = dictionary.addresses.length - 1;
+        return dictionary;
+    }
+
+    private synchronized int insert(int prefixId, byte[] buffer, int offset, int length) {
+        int hash = hash(prefixId, buffer, offset, length);
+
+        // Un autre thread a pu insérer le terme entre-temps
+        int[] table = slots;
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (int key; (key = table[index]) != 0; index = (index + 1) & mask) {
+            if (hashes[key] == hash && prefixIdOf(key) == prefixId && suffixEquals(key, buffer, offset, length)) {
+                return key;
+            }
+        }
+
+        int key = size + 1;
+        if (key >= addresses.length) {
+            int capacity = addresses.length * 2;
+            addresses = Arrays.copyOf(addresses, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            prefixIds = Arrays.copyOf(prefixIds, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+
+        addresses[key] = append(buffer, offset, length);
+        lengths[key] = length;
+        prefixIds[key] = prefixId;
+        hashes[key] = hash;
+
+        if (2 * key > table.length) {
+            table = rehash(table.length * 2, key - 1);
+            slots = table;
+            mask = table.length - 1;
+            index = hash & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+        }
+
+        // Publication : un lecteur qui voit l'identifiant voit aussi ses données
+        size = key;
+        SLOTS.setRelease(table, index, key);
+        return key;
+    }
+
+    private int[] rehash(int capacity, int keyCount) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int key = 1; key <= keyCount; key++) {
+            int index = hashes[key] & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = key;
+        }
+        return table;
+    }
+
+    // Copie les octets dans la page courante (ou une nouvelle) et renvoie leur adresse
+    private long append(byte[] buffer, int offset, int length) {
+        ByteBuffer page = pageCount == 0 ? null : pages[pageCount - 1];
+        if (page == null || page.isReadOnly() || page.remaining() < length) {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            page = ByteBuffer.allocateDirect(Math.max(PAGE_SIZE, length));
+            pages[pageCount++] = page;
+        }
+
+        int position = page.position();
+        page.put(buffer, offset, length);
+        return ((long) (pageCount - 1) << 32) | position;
+    }
+
+    private boolean suffixEquals(int key, byte[] buffer, int offset, int length) {
+        if (lengths[key] != length) {
+            return false;
+        }
+
+        long address = addresses[key];
+        ByteBuffer page = pages[(int) (address >>> 32)];
+        int position = (int) address;
+        for (int i = 0; i < length; i++) {
+            if (page.get(position + i) != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copySuffix(int key, byte[] destination, int destinationOffset) {
+        long address = addresses[key];
+        pages[(int) (address >>> 32)].get((int) address, destination, destinationOffset, lengths[key]);
+    }
+
+    private int prefixIdOf(int key) {
+        return prefixes == null ? 0 : prefixIds[key];
+    }
+
+    /**
+     * Longueur du préfixe partagé du terme : jusqu'au dernier {@code /} ou
+     * {@code #} inclus pour ce qui ressemble à une IRI, 0 sinon.
+     */
+    private int prefixLength(byte[] buffer, int offset, int length) {
+        if (prefixes == null) {
+            return 0;
+        }
+
+        // Une IRI commence par un schéma suivi de ':' (http:, urn:, ...)
+        int colon = -1;
+        for (int i = 0; i < Math.min(length, 16); i++) {
+            byte current = buffer[offset + i];
+            if (current == ':') {
+                colon = i;
+                break;
+            }
+            if (!Character.isLetterOrDigit(current)) {
+                return 0;
+            }
+        }
+        if (colon <= 0) {
+            return 0;
+        }
+
+        for (int i = length - 1; i > colon; i--) {
+            byte current = buffer[offset + i];
+            if (current == '/' || current == '#') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int hash(int prefixId, byte[] buffer, int offset, int length) {
+        // FNV-1a puis brassage final de murmur3
+        int hash = 0x811C9DC5 ^ (prefixId * 0x9E3779B9);
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ buffer[i]) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,57 @@
+package qengine.program;
+
+import java.util.Arrays;
+
+/**
+ * Tableau extensible de triples encodés, rangés à la suite (sujet, prédicat,
+ * objet).
+ */
+public final class TripleBuffer {
+    private int[] data;
+    private int size = 0;
+
+    public TripleBuffer() {
+        this(1024);
+    }
+
+    public TripleBuffer(int capacity) {
+        data = new int[3 * Math.max(1, capacity)];
+    }
+
+    public void add(int subject, int predicate, int object) {
+        ensureCapacity(size + 1);
+        int position = 3 * size;
+        data[position] = subject;
+        data[position + 1] = predicate;
+        data[position + 2] = object;
+        size++;
+    }
+
+    public void addAll(TripleBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, 3 * size, 3 * other.size);
+        size += other.size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Nombre de triples.
+     */
+    public int size() {
+        return size;
+    }
+
+    int[] array() {
+        return data;
+    }
+
+    private void ensureCapacity(int triples) {
+        if (3L * triples > data.length) {
+            long capacity = Math.max(3L * triples, 2L * data.length);
+            data = Arrays.copyOf(data, (int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        }
+    }
+}